@@ -0,0 +1,161 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.transport.QueueTransportBuffer;
+import com.glines.socketio.server.transport.RingTransportBuffer;
+import com.glines.socketio.server.transport.TransportBuffer;
+
+/**
+ * Compares the {@link TransportBuffer} implementations with 1, 4 and 16 producers feeding a
+ * single consumer that drains in batches, as the XHR transports do.
+ * <p>
+ * The score of the put methods counts every call, including the ones that timed out on a
+ * full buffer. The puts and failedPuts counters report the two separately.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class TransportBufferBenchmark {
+	private static final String MESSAGE = SocketIOFrame.encode(SocketIOFrame.FrameType.DATA,
+			SocketIOFrame.JSON_MESSAGE_TYPE, "{\"message\":[\"42\",\"Hello from the benchmark\"]}");
+
+	/**
+	 * Producers give up quickly so that they don't outlive the consumer at the end of an iteration.
+	 */
+	private static final long PUT_TIMEOUT = 10;
+
+	@Param({"queue", "ring"})
+	public String impl;
+
+	@Param({"8192"})
+	public int bufferSize;
+
+	private TransportBuffer buffer;
+	private List<String> sink;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class PutCounters {
+		public long puts;
+		public long failedPuts;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			puts = 0;
+			failedPuts = 0;
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		buffer = "ring".equals(impl) ? new RingTransportBuffer(bufferSize) : new QueueTransportBuffer(bufferSize);
+		sink = new ArrayList<String>();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() {
+		buffer.clear();
+	}
+
+	private boolean put(PutCounters counters) {
+		if (buffer.putMessage(MESSAGE, PUT_TIMEOUT)) {
+			counters.puts++;
+			return true;
+		}
+		counters.failedPuts++;
+		return false;
+	}
+
+	private int drain() {
+		sink.clear();
+		return buffer.drainTo(sink);
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public boolean put1(PutCounters counters) {
+		return put(counters);
+	}
+
+	@Benchmark
+	@Group("producers1")
+	@GroupThreads(1)
+	public int drain1() {
+		return drain();
+	}
+
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(4)
+	public boolean put4(PutCounters counters) {
+		return put(counters);
+	}
+
+	@Benchmark
+	@Group("producers4")
+	@GroupThreads(1)
+	public int drain4() {
+		return drain();
+	}
+
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(16)
+	public boolean put16(PutCounters counters) {
+		return put(counters);
+	}
+
+	@Benchmark
+	@Group("producers16")
+	@GroupThreads(1)
+	public int drain16() {
+		return drain();
+	}
+}
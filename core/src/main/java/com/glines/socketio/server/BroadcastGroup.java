@@ -0,0 +1,326 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * A set of sockets that messages can be broadcast to.
+ * <p>
+ * Joining returns a {@link Membership} that links the socket into the group, so leaving is
+ * O(1) no matter the size of the group. A broadcast encodes the message once and hands the
+ * same {@link PreEncodedFrame} to every member with
+ * {@link SocketIOOutbound#sendEncodedAsync(PreEncodedFrame)}, so a slow member never
+ * delays the others. Members are read from a snapshot that is only rebuilt after the
+ * membership changed; a socket that leaves during a broadcast may still receive it.
+ * <p>
+ * When an {@link Executor} is given, groups larger than the chunk size are split into chunks
+ * that are delivered in parallel by the executor (a {@code ForkJoinPool} works well on
+ * Java 7 and above). Otherwise the calling thread delivers to all members.
+ */
+public class BroadcastGroup {
+	public static final int CHUNK_SIZE_DEFAULT = 1024;
+	private static final Membership[] NO_MEMBERS = new Membership[0];
+
+	public final class Membership {
+		private final SocketIOOutbound outbound;
+		// Guarded by the group.
+		private Membership prev;
+		private Membership next;
+		private boolean joined = true;
+
+		private Membership(SocketIOOutbound outbound) {
+			this.outbound = outbound;
+		}
+
+		public SocketIOOutbound getOutbound() {
+			return outbound;
+		}
+
+		public BroadcastGroup getGroup() {
+			return BroadcastGroup.this;
+		}
+
+		/**
+		 * Remove the socket from the group.
+		 * @return false if it had already left.
+		 */
+		public boolean leave() {
+			return BroadcastGroup.this.leave(this);
+		}
+	}
+
+	private final String name;
+	private final Executor executor;
+	private final int chunkSize;
+
+	// Guarded by this.
+	private Membership head = null;
+	private Membership tail = null;
+	private int size = 0;
+	private Membership[] snapshot = NO_MEMBERS;
+	private boolean changed = false;
+
+	private final AtomicLong broadcasts = new AtomicLong(0);
+	private final AtomicLong deliveries = new AtomicLong(0);
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final AtomicLong fanOutNanos = new AtomicLong(0);
+	private final SendFuture.Listener deliveryListener = new SendFuture.Listener() {
+		@Override
+		public void onSendComplete(SendResult result) {
+			switch (result) {
+			case SENT:
+				sent.incrementAndGet();
+				break;
+			case DROPPED:
+				dropped.incrementAndGet();
+				break;
+			default:
+				failed.incrementAndGet();
+				break;
+			}
+		}
+	};
+
+	public BroadcastGroup(String name) {
+		this(name, null, CHUNK_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param name Name of the group, used in logs and {@link #toString()}.
+	 * @param executor Executor that delivers chunks of large groups in parallel, or null.
+	 * @param chunkSize Number of members delivered to by each parallel task.
+	 */
+	public BroadcastGroup(String name, Executor executor, int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be greater than 0: " + chunkSize);
+		}
+		this.name = name;
+		this.executor = executor;
+		this.chunkSize = chunkSize;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Add a socket to the group. A socket can join more than once, in which case it will
+	 * receive broadcasts once per membership.
+	 */
+	public Membership join(SocketIOOutbound outbound) {
+		Membership membership = new Membership(outbound);
+		synchronized (this) {
+			if (tail == null) {
+				head = tail = membership;
+			} else {
+				tail.next = membership;
+				membership.prev = tail;
+				tail = membership;
+			}
+			size++;
+			changed = true;
+		}
+		return membership;
+	}
+
+	private synchronized boolean leave(Membership membership) {
+		if (!membership.joined) {
+			return false;
+		}
+		membership.joined = false;
+		if (membership.prev != null) {
+			membership.prev.next = membership.next;
+		} else {
+			head = membership.next;
+		}
+		if (membership.next != null) {
+			membership.next.prev = membership.prev;
+		} else {
+			tail = membership.prev;
+		}
+		membership.prev = null;
+		membership.next = null;
+		size--;
+		changed = true;
+		return true;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	private synchronized Membership[] getMembers() {
+		if (changed) {
+			Membership[] members = new Membership[size];
+			int i = 0;
+			for (Membership m = head; m != null; m = m.next) {
+				members[i++] = m;
+			}
+			snapshot = members;
+			changed = false;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Send a message to every member.
+	 * @return The number of members the message was handed to.
+	 */
+	public int broadcast(int messageType, String message) {
+		return broadcast(new PreEncodedFrame(messageType, message), null);
+	}
+
+	/**
+	 * Send a message to every member except one, typically the sender.
+	 * @return The number of members the message was handed to.
+	 */
+	public int broadcast(int messageType, String message, SocketIOOutbound except) {
+		return broadcast(new PreEncodedFrame(messageType, message), except);
+	}
+
+	/**
+	 * Send a pre-encoded frame to every member except except, which may be null.
+	 * @return The number of members the frame was handed to.
+	 */
+	public int broadcast(PreEncodedFrame frame, SocketIOOutbound except) {
+		long start = System.nanoTime();
+		Membership[] members = getMembers();
+		broadcasts.incrementAndGet();
+		int count = members.length;
+		if (executor == null || members.length <= chunkSize) {
+			count = deliver(members, 0, members.length, frame, except);
+		} else {
+			for (int from = 0; from < members.length; from += chunkSize) {
+				int to = Math.min(from + chunkSize, members.length);
+				try {
+					executor.execute(new Delivery(members, from, to, frame, except));
+				} catch (RejectedExecutionException e) {
+					deliver(members, from, to, frame, except);
+				}
+			}
+			if (except != null) {
+				for (Membership m: members) {
+					if (m.outbound == except) {
+						count--;
+					}
+				}
+			}
+		}
+		fanOutNanos.addAndGet(System.nanoTime() - start);
+		return count;
+	}
+
+	private final class Delivery implements Runnable {
+		private final Membership[] members;
+		private final int from;
+		private final int to;
+		private final PreEncodedFrame frame;
+		private final SocketIOOutbound except;
+
+		Delivery(Membership[] members, int from, int to, PreEncodedFrame frame, SocketIOOutbound except) {
+			this.members = members;
+			this.from = from;
+			this.to = to;
+			this.frame = frame;
+			this.except = except;
+		}
+
+		@Override
+		public void run() {
+			deliver(members, from, to, frame, except);
+		}
+	}
+
+	private int deliver(Membership[] members, int from, int to, PreEncodedFrame frame, SocketIOOutbound except) {
+		int count = 0;
+		for (int i = from; i < to; i++) {
+			SocketIOOutbound outbound = members[i].outbound;
+			if (outbound == except) {
+				continue;
+			}
+			count++;
+			try {
+				outbound.sendEncodedAsync(frame).addListener(deliveryListener);
+			} catch (Throwable t) {
+				failed.incrementAndGet();
+				Log.warn("BroadcastGroup[" + name + "]: delivery failed", t);
+			}
+		}
+		deliveries.addAndGet(count);
+		return count;
+	}
+
+	public long getBroadcasts() {
+		return broadcasts.get();
+	}
+
+	/**
+	 * @return The number of messages handed to members.
+	 */
+	public long getDeliveries() {
+		return deliveries.get();
+	}
+
+	/**
+	 * @return The number of messages written or buffered by members.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of messages discarded by the overflow policy of members.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of messages that could not be delivered because a member was closed
+	 * or too slow.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return The total time, in nanoseconds, spent in {@link #broadcast} calls.
+	 */
+	public long getFanOutNanos() {
+		return fanOutNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "BroadcastGroup[" + name + "]: members=" + size() + ", broadcasts=" + getBroadcasts() +
+			", deliveries=" + getDeliveries() + ", sent=" + getSent() + ", dropped=" + getDropped() +
+			", failed=" + getFailed() + ", fanOutNanos=" + getFanOutNanos();
+	}
+}
@@ -0,0 +1,121 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the messages compressed by a transport. All methods are thread safe.
+ */
+public class CompressionStats {
+	private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+	private static final boolean CPU_TIME_SUPPORTED = isCpuTimeSupported();
+
+	private final AtomicLong compressed = new AtomicLong(0);
+	private final AtomicLong skipped = new AtomicLong(0);
+	private final AtomicLong bytesIn = new AtomicLong(0);
+	private final AtomicLong bytesOut = new AtomicLong(0);
+	private final AtomicLong cpuNanos = new AtomicLong(0);
+
+	private static boolean isCpuTimeSupported() {
+		try {
+			return THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return The CPU time of the current thread in nanoseconds, or the wall clock time if
+	 * the JVM doesn't measure thread CPU time. Only the difference of two calls is meaningful.
+	 */
+	public static long currentTime() {
+		return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	/**
+	 * @param in Size of the message before compression.
+	 * @param out Size of the message after compression.
+	 * @param nanos Time spent compressing, as measured with {@link #currentTime()}.
+	 */
+	public void onCompressed(int in, int out, long nanos) {
+		compressed.incrementAndGet();
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+		cpuNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Called for a message that was sent uncompressed because it was too small.
+	 */
+	public void onSkipped(int size) {
+		skipped.incrementAndGet();
+	}
+
+	public long getCompressed() {
+		return compressed.get();
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	/**
+	 * @return The total size of the compressed messages before compression.
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+
+	/**
+	 * @return The total size of the compressed messages after compression.
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+
+	/**
+	 * @return bytesIn / bytesOut, or 1 if nothing was compressed.
+	 */
+	public double getRatio() {
+		long out = bytesOut.get();
+		return out == 0 ? 1 : (double)bytesIn.get() / out;
+	}
+
+	/**
+	 * @return The CPU time spent compressing, in nanoseconds. This is wall clock time if the
+	 * JVM doesn't measure thread CPU time.
+	 */
+	public long getCpuNanos() {
+		return cpuNanos.get();
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStats: compressed=" + getCompressed() + ", skipped=" + getSkipped() +
+			", bytesIn=" + getBytesIn() + ", bytesOut=" + getBytesOut() +
+			", ratio=" + String.format("%.2f", getRatio()) + ", cpuNanos=" + getCpuNanos();
+	}
+}
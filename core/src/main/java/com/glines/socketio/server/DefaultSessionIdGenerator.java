@@ -0,0 +1,146 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * {@link SessionIdGenerator} that draws from a set of striped entropy pools, so that
+ * concurrent session creations don't serialize on a single {@link SecureRandom}.
+ * <p>
+ * Each pool has its own SecureRandom, seeded from a shared one, and a buffer of random bytes
+ * that is refilled in batches. A thread uses the pool selected by its id, so threads mostly
+ * hit different pools and each id only costs a short uncontended critical section. The pools
+ * hold no reference to the calling threads, unlike a ThreadLocal, so nothing leaks when the
+ * web application is redeployed.
+ * <p>
+ * If a node id is set, session ids are prefixed with it and a '.', which lets a load balancer
+ * route a session back to the node that created it.
+ */
+public class DefaultSessionIdGenerator implements SessionIdGenerator {
+	public static final int SESSION_ID_LENGTH_DEFAULT = 20;
+	public static final char NODE_ID_SEPARATOR = '.';
+	private static final char[] BASE64_ALPHABET =
+		"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+	private static final int POOL_SIZE = 1024;
+
+	private static final class Pool {
+		private final SecureRandom random;
+		private final byte[] bytes = new byte[POOL_SIZE];
+		private int pos = POOL_SIZE;
+
+		Pool(SecureRandom seeder) {
+			SecureRandom r;
+			try {
+				r = SecureRandom.getInstance("SHA1PRNG");
+			} catch (NoSuchAlgorithmException e) {
+				r = new SecureRandom();
+			}
+			byte[] seed = new byte[32];
+			seeder.nextBytes(seed);
+			r.setSeed(seed);
+			this.random = r;
+		}
+
+		synchronized void append(StringBuilder sb, int length) {
+			while (length > 0) {
+				if (pos == POOL_SIZE) {
+					random.nextBytes(bytes);
+					pos = 0;
+				}
+				int n = Math.min(length, POOL_SIZE - pos);
+				for (int i = 0; i < n; i++) {
+					sb.append(BASE64_ALPHABET[bytes[pos + i] & 0x3F]);
+				}
+				pos += n;
+				length -= n;
+			}
+		}
+	}
+
+	private final Pool[] pools;
+	private final int mask;
+	private final String prefix;
+	private final int idLength;
+
+	public DefaultSessionIdGenerator() {
+		this(null, SESSION_ID_LENGTH_DEFAULT);
+	}
+
+	/**
+	 * @param nodeId Prefix of the session ids, or null for none. It must only use characters
+	 * that are safe in a URL path segment.
+	 * @param idLength Number of random characters of each session id. Each carries 6 bits
+	 * of entropy.
+	 */
+	public DefaultSessionIdGenerator(String nodeId, int idLength) {
+		if (idLength <= 0) {
+			throw new IllegalArgumentException("idLength must be greater than 0: " + idLength);
+		}
+		int count = 1;
+		while (count < Runtime.getRuntime().availableProcessors() * 2) {
+			count <<= 1;
+		}
+		SecureRandom seeder = new SecureRandom();
+		this.pools = new Pool[count];
+		for (int i = 0; i < count; i++) {
+			pools[i] = new Pool(seeder);
+		}
+		this.mask = count - 1;
+		this.prefix = nodeId == null || nodeId.length() == 0 ? null : nodeId + NODE_ID_SEPARATOR;
+		this.idLength = idLength;
+	}
+
+	/**
+	 * @return The node id prefix of the session ids, or null.
+	 */
+	public String getNodeId() {
+		return prefix == null ? null : prefix.substring(0, prefix.length() - 1);
+	}
+
+	private Pool getPool() {
+		long id = Thread.currentThread().getId();
+		return pools[(int)(id ^ (id >>> 16)) & mask];
+	}
+
+	@Override
+	public String generateSessionId() {
+		StringBuilder sb;
+		if (prefix == null) {
+			sb = new StringBuilder(idLength);
+		} else {
+			sb = new StringBuilder(prefix.length() + idLength);
+			sb.append(prefix);
+		}
+		getPool().append(sb, idLength);
+		return sb.toString();
+	}
+
+	@Override
+	public String generateRandomString(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		getPool().append(sb, length);
+		return sb.toString();
+	}
+}
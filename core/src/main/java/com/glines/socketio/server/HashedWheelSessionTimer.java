@@ -0,0 +1,285 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * {@link SessionTimer} based on a hashed timing wheel.
+ * <p>
+ * Time is divided into ticks of tickDuration milliseconds and every tick maps to one of
+ * wheelSize slots. Scheduling and cancelling a task are O(1) and never contend on a shared heap:
+ * the calling thread only appends to a lock free queue, and a single worker thread links the
+ * task into its slot, or unlinks it, on the next tick. Tasks are run by the worker thread
+ * with a precision of one tick.
+ */
+public class HashedWheelSessionTimer implements SessionTimer {
+	public static final long TICK_DURATION_DEFAULT = 100;
+	public static final int WHEEL_SIZE_DEFAULT = 512;
+
+	/**
+	 * Upper bound of newly scheduled tasks linked into the wheel per tick, so that a burst of
+	 * schedule() calls can't starve expiration.
+	 */
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private static final int ST_INIT = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+		AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+	private final class Timeout implements SocketIOSession.SessionTask {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		volatile int state = ST_INIT;
+
+		// Only accessed by the worker thread.
+		private Timeout next;
+		private Timeout prev;
+		private Slot slot;
+
+		Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public boolean cancel() {
+			if (STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+				cancelled.add(this);
+				return true;
+			}
+			return state == ST_CANCELLED;
+		}
+
+		void expire() {
+			if (STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+				try {
+					task.run();
+				} catch (Throwable t) {
+					Log.warn("Exception thrown by session timer task", t);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the tasks that fall on one position of the wheel.
+	 */
+	private static final class Slot {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.slot = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (next != null) {
+				next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				head = next;
+			}
+			if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.slot = null;
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.state == ST_CANCELLED) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+					remove(timeout);
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	private final long tickDuration;
+	private final Slot[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+	private final long startTime;
+	private final Thread worker;
+	private volatile boolean running = true;
+	private long tick = 0;
+
+	public HashedWheelSessionTimer() {
+		this(TICK_DURATION_DEFAULT, WHEEL_SIZE_DEFAULT);
+	}
+
+	/**
+	 * @param tickDuration Duration of one tick in milliseconds.
+	 * @param wheelSize Number of slots in the wheel. It will be rounded up to a power of two.
+	 */
+	public HashedWheelSessionTimer(long tickDuration, int wheelSize) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration must be greater than 0: " + tickDuration);
+		}
+		if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException("wheelSize must be between 1 and 2^30: " + wheelSize);
+		}
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		this.wheel = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Slot();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				HashedWheelSessionTimer.this.run();
+			}
+		}, "SocketIO-SessionTimer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public long getTickDuration() {
+		return TimeUnit.NANOSECONDS.toMillis(tickDuration);
+	}
+
+	public int getWheelSize() {
+		return wheel.length;
+	}
+
+	@Override
+	public SocketIOSession.SessionTask schedule(Runnable task, long delay) {
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay));
+		if (running) {
+			pending.add(timeout);
+		}
+		return timeout;
+	}
+
+	@Override
+	public void stop() {
+		running = false;
+		if (Thread.currentThread() != worker) {
+			worker.interrupt();
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		pending.clear();
+		cancelled.clear();
+	}
+
+	private void run() {
+		while (running) {
+			long deadline = waitForNextTick();
+			if (deadline < 0) {
+				break;
+			}
+			removeCancelled();
+			transferPending();
+			wheel[(int)(tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	private void transferPending() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = pending.poll();
+			if (timeout == null) {
+				break;
+			}
+			if (timeout.state != ST_INIT) {
+				continue;
+			}
+			long calculated = timeout.deadline / tickDuration;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			long ticks = Math.max(calculated, tick);
+			wheel[(int)(ticks & mask)].add(timeout);
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.slot != null) {
+				timeout.slot.remove(timeout);
+			}
+		}
+	}
+
+	/**
+	 * @return The time, relative to startTime, of the tick that was waited for, or -1 if
+	 * the timer was stopped.
+	 */
+	private long waitForNextTick() {
+		long deadline = tickDuration * (tick + 1);
+		while (true) {
+			long currentTime = System.nanoTime() - startTime;
+			long sleepTime = TimeUnit.NANOSECONDS.toMillis(deadline - currentTime + 999999);
+			if (sleepTime <= 0) {
+				return currentTime;
+			}
+			try {
+				Thread.sleep(sleepTime);
+			} catch (InterruptedException e) {
+				if (!running) {
+					return -1;
+				}
+			}
+		}
+	}
+}
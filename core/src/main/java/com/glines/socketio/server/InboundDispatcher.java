@@ -0,0 +1,320 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Runs the {@link SocketIOInbound} callbacks of each session in order on a shared executor,
+ * so that a slow handler doesn't hold the container thread that received the message.
+ * <p>
+ * Every session has its own {@link SessionQueue}. At most one task per session is submitted to
+ * the executor at any time; it runs up to a batch of queued callbacks and resubmits itself if
+ * more are left, so busy sessions can't starve the others. The number of messages waiting in a
+ * session queue is limited, and the {@link RejectionPolicy} decides what happens to a message
+ * that arrives when the queue is full. Connect and disconnect callbacks are never rejected.
+ */
+public class InboundDispatcher {
+	public static final int MAX_QUEUE_DEPTH_DEFAULT = 1000;
+
+	/**
+	 * Maximum number of callbacks run in a row for one session before its task is resubmitted.
+	 */
+	private static final int BATCH_SIZE = 64;
+
+	public enum RejectionPolicy {
+		/**
+		 * Block the container thread until the session queue has room. This is the back
+		 * pressure of running the callbacks inline, but only once the queue is full.
+		 */
+		BLOCK,
+		/**
+		 * Discard the message.
+		 */
+		DROP,
+		/**
+		 * Discard the message and disconnect the session.
+		 */
+		DISCONNECT
+	}
+
+	public final class SessionQueue {
+		private final String sessionId;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicInteger depth = new AtomicInteger(0);
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private volatile Thread runner = null;
+		private volatile int maxDepth = 0;
+		private final AtomicLong executed = new AtomicLong(0);
+		private final AtomicLong rejected = new AtomicLong(0);
+		private final Runnable drainTask = new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		};
+
+		private SessionQueue(String sessionId) {
+			this.sessionId = sessionId;
+		}
+
+		/**
+		 * Queue a message callback, subject to the queue depth limit.
+		 * @return false if the callback was rejected.
+		 */
+		boolean execute(Runnable task) {
+			if (depth.get() >= maxQueueDepth && Thread.currentThread() != runner) {
+				if (rejectionPolicy != RejectionPolicy.BLOCK || !awaitRoom()) {
+					rejected.incrementAndGet();
+					totalRejected.incrementAndGet();
+					return false;
+				}
+			}
+			enqueue(task);
+			return true;
+		}
+
+		/**
+		 * Queue a lifecycle callback. It is never rejected.
+		 */
+		void executeAlways(Runnable task) {
+			enqueue(task);
+		}
+
+		private boolean awaitRoom() {
+			boolean interrupted = false;
+			try {
+				synchronized (this) {
+					while (depth.get() >= maxQueueDepth) {
+						try {
+							wait(100);
+						} catch (InterruptedException e) {
+							interrupted = true;
+						}
+						if (shutdown) {
+							return false;
+						}
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return true;
+		}
+
+		private void enqueue(Runnable task) {
+			tasks.add(task);
+			int d = depth.incrementAndGet();
+			if (d > maxDepth) {
+				maxDepth = d;
+			}
+			totalQueued.incrementAndGet();
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(drainTask);
+				} catch (RejectedExecutionException e) {
+					// The executor is shutting down or saturated: keep the order by running inline.
+					drain();
+				}
+			}
+		}
+
+		private void drain() {
+			runner = Thread.currentThread();
+			try {
+				for (int i = 0; i < BATCH_SIZE; i++) {
+					Runnable task = tasks.poll();
+					if (task == null) {
+						break;
+					}
+					try {
+						task.run();
+					} catch (Throwable t) {
+						Log.warn("Session["+sessionId+"]: Exception thrown by inbound callback", t);
+					}
+					executed.incrementAndGet();
+					totalExecuted.incrementAndGet();
+					totalQueued.decrementAndGet();
+					if (depth.decrementAndGet() == maxQueueDepth - 1 && rejectionPolicy == RejectionPolicy.BLOCK) {
+						synchronized (this) {
+							notifyAll();
+						}
+					}
+				}
+			} finally {
+				runner = null;
+				scheduled.set(false);
+			}
+			if (!tasks.isEmpty()) {
+				schedule();
+			}
+		}
+
+		public String getSessionId() {
+			return sessionId;
+		}
+
+		/**
+		 * @return The number of callbacks waiting to run, or running.
+		 */
+		public int getDepth() {
+			return depth.get();
+		}
+
+		/**
+		 * @return The highest depth reached by this queue.
+		 */
+		public int getMaxDepth() {
+			return maxDepth;
+		}
+
+		public long getExecuted() {
+			return executed.get();
+		}
+
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		@Override
+		public String toString() {
+			return "SessionQueue[" + sessionId + "]: depth=" + getDepth() + ", maxDepth=" + getMaxDepth() +
+				", executed=" + getExecuted() + ", rejected=" + getRejected();
+		}
+	}
+
+	private final Executor executor;
+	private final int maxQueueDepth;
+	private final RejectionPolicy rejectionPolicy;
+	private final AtomicLong totalQueued = new AtomicLong(0);
+	private final AtomicLong totalExecuted = new AtomicLong(0);
+	private final AtomicLong totalRejected = new AtomicLong(0);
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param executor Executor that runs the callbacks. It is shut down by {@link #shutdown()}
+	 * if it is an {@link ExecutorService}.
+	 * @param maxQueueDepth Maximum number of messages waiting per session.
+	 */
+	public InboundDispatcher(Executor executor, int maxQueueDepth, RejectionPolicy rejectionPolicy) {
+		if (maxQueueDepth <= 0) {
+			throw new IllegalArgumentException("maxQueueDepth must be greater than 0: " + maxQueueDepth);
+		}
+		this.executor = executor;
+		this.maxQueueDepth = maxQueueDepth;
+		this.rejectionPolicy = rejectionPolicy;
+	}
+
+	/**
+	 * @return A fixed size pool of daemon threads.
+	 */
+	public static ExecutorService newThreadPool(int threads) {
+		final AtomicInteger count = new AtomicInteger(0);
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SocketIO-Inbound-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	}
+
+	/**
+	 * @return An executor that starts a virtual thread per task, or null if the JVM has no
+	 * virtual threads.
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	SessionQueue createQueue(String sessionId) {
+		return new SessionQueue(sessionId);
+	}
+
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	public RejectionPolicy getRejectionPolicy() {
+		return rejectionPolicy;
+	}
+
+	/**
+	 * @return The number of callbacks waiting to run, or running, in all session queues.
+	 */
+	public long getQueued() {
+		return totalQueued.get();
+	}
+
+	public long getExecuted() {
+		return totalExecuted.get();
+	}
+
+	public long getRejected() {
+		return totalRejected.get();
+	}
+
+	/**
+	 * Shut the executor down and release the threads blocked by {@link RejectionPolicy#BLOCK}.
+	 * Callbacks queued afterwards run on the calling thread.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		if (executor instanceof ExecutorService) {
+			((ExecutorService)executor).shutdownNow();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "InboundDispatcher: queued=" + getQueued() + ", executed=" + getExecuted() + ", rejected=" + getRejected();
+	}
+}
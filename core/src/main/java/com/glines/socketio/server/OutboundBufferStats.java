@@ -0,0 +1,200 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the bytes and frames held in outbound buffers, and how they are flushed to the
+ * connection. Sizes are the UTF-8 encoded size of the frames, which is what they will cost
+ * on the wire.
+ * <p>
+ * Every session has its own instance, and all of them report to the global instance of the
+ * servlet that created the session (see {@link SocketIOServlet#getOutboundBufferStats()}).
+ */
+public class OutboundBufferStats {
+	private final OutboundBufferStats parent;
+	private final OutboundMemoryBudget budget;
+	private final AtomicLong bufferedBytes = new AtomicLong(0);
+	private final AtomicLong bufferedMessages = new AtomicLong(0);
+	private final AtomicLong peakBufferedBytes = new AtomicLong(0);
+	private final AtomicLong droppedMessages = new AtomicLong(0);
+	private final AtomicLong conflatedMessages = new AtomicLong(0);
+	private final AtomicLong flushes = new AtomicLong(0);
+	private final AtomicLong flushedMessages = new AtomicLong(0);
+	private volatile long lastReleaseTime = System.currentTimeMillis();
+
+	public OutboundBufferStats() {
+		this(null);
+	}
+
+	/**
+	 * @param parent Instance that will also be updated by this one, or null.
+	 */
+	public OutboundBufferStats(OutboundBufferStats parent) {
+		this(parent, null);
+	}
+
+	/**
+	 * @param parent Instance that will also be updated by this one, or null.
+	 * @param budget Budget the buffered bytes are reserved from, or null.
+	 */
+	public OutboundBufferStats(OutboundBufferStats parent, OutboundMemoryBudget budget) {
+		this.parent = parent;
+		this.budget = budget;
+	}
+
+	/**
+	 * Reserve space in the memory budget, if any, for a message of the given size and record
+	 * that it was added to a buffer.
+	 * @return false if the budget refused the message, in which case nothing is recorded.
+	 */
+	public boolean tryBuffer(int bytes) {
+		if (budget != null && !budget.tryReserve(bufferedBytes.get(), bytes)) {
+			return false;
+		}
+		onBuffered(bytes);
+		return true;
+	}
+
+	/**
+	 * Reserve space in the memory budget, if any, for a control frame, which is never refused,
+	 * and record that it was added to a buffer.
+	 */
+	public void forceBuffer(int bytes) {
+		if (budget != null) {
+			budget.reserve(bytes);
+		}
+		onBuffered(bytes);
+	}
+
+	/**
+	 * Record that a message of the given size was added to a buffer.
+	 */
+	public void onBuffered(int bytes) {
+		long total = bufferedBytes.addAndGet(bytes);
+		bufferedMessages.incrementAndGet();
+		long peak;
+		while (total > (peak = peakBufferedBytes.get())) {
+			if (peakBufferedBytes.compareAndSet(peak, total)) {
+				break;
+			}
+		}
+		if (parent != null) {
+			parent.onBuffered(bytes);
+		}
+	}
+
+	/**
+	 * Record that messages totalling the given size were removed from a buffer.
+	 */
+	public void onReleased(long bytes, int messages) {
+		bufferedBytes.addAndGet(-bytes);
+		bufferedMessages.addAndGet(-messages);
+		lastReleaseTime = System.currentTimeMillis();
+		if (budget != null) {
+			budget.release(bytes);
+		}
+		if (parent != null) {
+			parent.onReleased(bytes, messages);
+		}
+	}
+
+	/**
+	 * Record that messages were written to a connection with a single flush.
+	 */
+	public void onFlushed(int messages) {
+		flushes.incrementAndGet();
+		flushedMessages.addAndGet(messages);
+		if (parent != null) {
+			parent.onFlushed(messages);
+		}
+	}
+
+	/**
+	 * Record that messages were discarded by an {@link OverflowPolicy}.
+	 */
+	public void onDropped(int messages) {
+		droppedMessages.addAndGet(messages);
+		if (parent != null) {
+			parent.onDropped(messages);
+		}
+	}
+
+	/**
+	 * Record that a buffered message was replaced by a newer one with the same key.
+	 */
+	public void onConflated() {
+		conflatedMessages.incrementAndGet();
+		if (parent != null) {
+			parent.onConflated();
+		}
+	}
+
+	public long getBufferedBytes() {
+		return bufferedBytes.get();
+	}
+
+	public long getBufferedMessages() {
+		return bufferedMessages.get();
+	}
+
+	public long getPeakBufferedBytes() {
+		return peakBufferedBytes.get();
+	}
+
+	/**
+	 * @return The last time, in milliseconds, messages were removed from the buffer.
+	 */
+	public long getLastReleaseTime() {
+		return lastReleaseTime;
+	}
+
+	/**
+	 * @return The number of flushes of buffered messages to the connection. Compared to
+	 * {@link #getFlushedMessages()} this shows how well writes are being coalesced.
+	 */
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	public long getFlushedMessages() {
+		return flushedMessages.get();
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public long getConflatedMessages() {
+		return conflatedMessages.get();
+	}
+
+	@Override
+	public String toString() {
+		return "bufferedBytes=" + getBufferedBytes() + ", bufferedMessages=" + getBufferedMessages() +
+			", peakBufferedBytes=" + getPeakBufferedBytes() + ", droppedMessages=" + getDroppedMessages() +
+			", conflatedMessages=" + getConflatedMessages() + ", flushes=" + getFlushes() +
+			", flushedMessages=" + getFlushedMessages();
+	}
+}
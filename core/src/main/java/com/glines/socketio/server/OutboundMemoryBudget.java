@@ -0,0 +1,202 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the bytes held in the outbound buffers of all the sessions of a servlet.
+ * <p>
+ * Every session is guaranteed a fair share of the budget (limit / number of sessions), and
+ * may borrow beyond its share while the budget isn't exhausted. A message that can be neither
+ * is refused by the buffer, which then treats it as if the buffer were full. Control frames
+ * are never refused, and are reserved even beyond the limit.
+ * <p>
+ * While the budget is exhausted new connections are refused, and when a
+ * {@link ShedPolicy} is set, sessions are disconnected until usage falls back under
+ * {@link #getLowWatermark()}.
+ */
+public class OutboundMemoryBudget {
+	public enum ShedPolicy {
+		/**
+		 * Never disconnect sessions.
+		 */
+		NONE,
+		/**
+		 * Disconnect the sessions with the most buffered bytes first.
+		 */
+		LARGEST,
+		/**
+		 * Disconnect the sessions whose buffers have gone the longest without being drained first.
+		 */
+		SLOWEST
+	}
+
+	private final long limit;
+	private final ShedPolicy shedPolicy;
+	private final AtomicLong used = new AtomicLong(0);
+	private final AtomicInteger sessions = new AtomicInteger(0);
+	private final AtomicLong refusedMessages = new AtomicLong(0);
+	private final AtomicLong refusedConnects = new AtomicLong(0);
+	private final AtomicLong shedSessions = new AtomicLong(0);
+	private final AtomicBoolean shedRequested = new AtomicBoolean(false);
+	private Runnable shedder = null;
+
+	/**
+	 * @param limit Total number of bytes that may be buffered.
+	 * @param shedPolicy What to disconnect when the budget is exhausted.
+	 */
+	public OutboundMemoryBudget(long limit, ShedPolicy shedPolicy) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be greater than 0: " + limit);
+		}
+		this.limit = limit;
+		this.shedPolicy = shedPolicy;
+	}
+
+	/**
+	 * Set the task that sheds load. It is run at most once at a time, and must call
+	 * {@link #onShedComplete()} when done.
+	 */
+	void setShedder(Runnable shedder) {
+		this.shedder = shedder;
+	}
+
+	void onSessionCreated() {
+		sessions.incrementAndGet();
+	}
+
+	void onSessionRemoved() {
+		sessions.decrementAndGet();
+	}
+
+	/**
+	 * Reserve bytes for a message of a session that currently holds sessionBytes.
+	 * @return false if the message would exceed both the session's fair share and the budget.
+	 */
+	boolean tryReserve(long sessionBytes, int bytes) {
+		long current;
+		do {
+			current = used.get();
+			if (current + bytes > limit && sessionBytes + bytes > getFairShare()) {
+				refusedMessages.incrementAndGet();
+				requestShed();
+				return false;
+			}
+		} while (!used.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	/**
+	 * Reserve bytes for a control frame, even beyond the limit.
+	 */
+	void reserve(long bytes) {
+		used.addAndGet(bytes);
+	}
+
+	void release(long bytes) {
+		used.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return true if new connections should be refused. Counts the connection as refused.
+	 */
+	boolean refuseConnect() {
+		if (isExhausted()) {
+			refusedConnects.incrementAndGet();
+			requestShed();
+			return true;
+		}
+		return false;
+	}
+
+	void onShed() {
+		shedSessions.incrementAndGet();
+	}
+
+	void onShedComplete() {
+		shedRequested.set(false);
+	}
+
+	private void requestShed() {
+		Runnable task = shedder;
+		if (shedPolicy != ShedPolicy.NONE && task != null && shedRequested.compareAndSet(false, true)) {
+			task.run();
+		}
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return The usage that shedding brings the budget back under: 90% of the limit.
+	 */
+	public long getLowWatermark() {
+		return limit - limit / 10;
+	}
+
+	public ShedPolicy getShedPolicy() {
+		return shedPolicy;
+	}
+
+	public long getUsedBytes() {
+		return used.get();
+	}
+
+	public boolean isExhausted() {
+		return used.get() >= limit;
+	}
+
+	/**
+	 * @return The number of bytes every session may buffer regardless of the total usage.
+	 */
+	public long getFairShare() {
+		return limit / Math.max(1, sessions.get());
+	}
+
+	public int getSessionCount() {
+		return sessions.get();
+	}
+
+	public long getRefusedMessages() {
+		return refusedMessages.get();
+	}
+
+	public long getRefusedConnects() {
+		return refusedConnects.get();
+	}
+
+	public long getShedSessions() {
+		return shedSessions.get();
+	}
+
+	@Override
+	public String toString() {
+		return "limit=" + limit + ", usedBytes=" + getUsedBytes() + ", sessions=" + getSessionCount() +
+			", fairShare=" + getFairShare() + ", refusedMessages=" + getRefusedMessages() +
+			", refusedConnects=" + getRefusedConnects() + ", shedSessions=" + getShedSessions();
+	}
+}
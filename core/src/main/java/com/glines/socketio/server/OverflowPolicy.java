@@ -0,0 +1,105 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+/**
+ * What to do with a data message sent to a session whose outbound buffer is full.
+ * The policy of a session is set with {@link SocketIOOutbound#setOverflowPolicy(OverflowPolicy)};
+ * the default is {@link #BLOCK}. Control frames (heartbeats, close) are never dropped.
+ */
+public final class OverflowPolicy {
+	public enum Type {
+		/**
+		 * Wait up to the transport's maxIdleTime for space, then disconnect the session with
+		 * {@link com.glines.socketio.common.DisconnectReason#TIMEOUT}.
+		 */
+		BLOCK,
+		/**
+		 * Discard the new message.
+		 */
+		DROP_NEWEST,
+		/**
+		 * Discard the oldest buffered data messages until the new message fits.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Replace the most recent buffered message that has the same key as the new message.
+		 * If there is none, or the buffer is still full, fall back to {@link #DROP_OLDEST}.
+		 */
+		CONFLATE
+	}
+
+	/**
+	 * Called for every data message sent while the policy is in effect, so that the message
+	 * can be found when a later one overflows. It should be cheap.
+	 */
+	public interface KeyExtractor {
+		/**
+		 * @return The conflation key of the message, or null if it must never be replaced.
+		 */
+		Object getKey(int messageType, String message);
+	}
+
+	public static final OverflowPolicy BLOCK = new OverflowPolicy(Type.BLOCK, null);
+	public static final OverflowPolicy DROP_NEWEST = new OverflowPolicy(Type.DROP_NEWEST, null);
+	public static final OverflowPolicy DROP_OLDEST = new OverflowPolicy(Type.DROP_OLDEST, null);
+
+	private final Type type;
+	private final KeyExtractor keyExtractor;
+
+	private OverflowPolicy(Type type, KeyExtractor keyExtractor) {
+		this.type = type;
+		this.keyExtractor = keyExtractor;
+	}
+
+	/**
+	 * @return A {@link Type#CONFLATE} policy that uses keyExtractor to match messages.
+	 */
+	public static OverflowPolicy conflate(KeyExtractor keyExtractor) {
+		if (keyExtractor == null) {
+			throw new IllegalArgumentException("keyExtractor must not be null");
+		}
+		return new OverflowPolicy(Type.CONFLATE, keyExtractor);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public KeyExtractor getKeyExtractor() {
+		return keyExtractor;
+	}
+
+	/**
+	 * @return The conflation key of a data message, or null if the policy is not
+	 * {@link Type#CONFLATE} or the message must never be replaced.
+	 */
+	public Object getKey(int messageType, String message) {
+		return keyExtractor != null ? keyExtractor.getKey(messageType, message) : null;
+	}
+
+	@Override
+	public String toString() {
+		return type.toString();
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * An immutable frame that has already been encoded for the wire.
+ * <p>
+ * When the same message is sent to many sessions, encode it once with
+ * {@link #PreEncodedFrame(SocketIOFrame.FrameType, int, String)} or {@link SocketIOFrame#preEncode()}
+ * and pass the instance to {@link SocketIOOutbound#sendEncoded(PreEncodedFrame)} for every
+ * recipient. The encoded text, and its UTF-8 bytes once requested, are shared by all of them.
+ */
+public final class PreEncodedFrame {
+	private final SocketIOFrame.FrameType frameType;
+	private final int messageType;
+	private final String data;
+	private final String encoded;
+	private volatile byte[] bytes = null;
+
+	public PreEncodedFrame(SocketIOFrame.FrameType frameType, int messageType, String data) {
+		this.frameType = frameType;
+		this.messageType = messageType;
+		this.data = data;
+		this.encoded = SocketIOFrame.encode(frameType, messageType, data);
+	}
+
+	/**
+	 * Convenience constructor for a DATA frame.
+	 */
+	public PreEncodedFrame(int messageType, String message) {
+		this(SocketIOFrame.FrameType.DATA, messageType, message);
+	}
+
+	public SocketIOFrame.FrameType getFrameType() {
+		return frameType;
+	}
+
+	public int getMessageType() {
+		return messageType;
+	}
+
+	/**
+	 * @return The message of the frame, before encoding.
+	 */
+	public String getData() {
+		return data;
+	}
+
+	/**
+	 * @return The encoded frame.
+	 */
+	public String getEncoded() {
+		return encoded;
+	}
+
+	/**
+	 * @return The UTF-8 encoding of the encoded frame. The array is cached and shared, so it must
+	 * not be modified.
+	 */
+	public byte[] getBytes() {
+		byte[] b = bytes;
+		if (b == null) {
+			try {
+				b = encoded.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			bytes = b;
+		}
+		return b;
+	}
+
+	@Override
+	public String toString() {
+		return encoded;
+	}
+}
@@ -0,0 +1,172 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Completion handle of an asynchronous send. A send can't be cancelled once it has been
+ * accepted, so {@link #cancel(boolean)} always returns false.
+ */
+public class SendFuture implements Future<SendResult> {
+	public interface Listener {
+		/**
+		 * Called once when the send completes. This may be called by the thread that initiated
+		 * the send or by a transport thread, so it must not block.
+		 */
+		void onSendComplete(SendResult result);
+	}
+
+	private final CountDownLatch latch = new CountDownLatch(1);
+	private volatile SendResult result = null;
+	private List<Listener> listeners = null;
+
+	/**
+	 * @return A future that has already completed with the given result.
+	 */
+	public static SendFuture completed(SendResult result) {
+		SendFuture future = new SendFuture();
+		future.complete(result);
+		return future;
+	}
+
+	/**
+	 * Complete this future and notify its listeners. Only the first call has any effect.
+	 * @return true if this call completed the future.
+	 */
+	public boolean complete(SendResult result) {
+		List<Listener> list;
+		synchronized (this) {
+			if (this.result != null) {
+				return false;
+			}
+			this.result = result;
+			list = listeners;
+			listeners = null;
+		}
+		latch.countDown();
+		if (list != null) {
+			for (Listener listener: list) {
+				notify(listener, result);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add a listener. If the send has already completed, the listener is called immediately
+	 * by the calling thread.
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (result == null) {
+				if (listeners == null) {
+					listeners = new ArrayList<Listener>(1);
+				}
+				listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener, result);
+	}
+
+	private static void notify(Listener listener, SendResult result) {
+		try {
+			listener.onSendComplete(result);
+		} catch (Throwable t) {
+			Log.warn("Exception thrown by SendFuture.Listener", t);
+		}
+	}
+
+	/**
+	 * @return The result, or null if the send hasn't completed yet.
+	 */
+	public SendResult getResult() {
+		return result;
+	}
+
+	/**
+	 * Wait up to timeout milliseconds for the send to complete, without being interrupted.
+	 * @return The result, or null if the send didn't complete in time.
+	 */
+	public SendResult await(long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		boolean interrupted = false;
+		try {
+			while (result == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				try {
+					latch.await(remaining, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		return result != null;
+	}
+
+	@Override
+	public SendResult get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return result;
+	}
+
+	@Override
+	public SendResult get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return result;
+	}
+}
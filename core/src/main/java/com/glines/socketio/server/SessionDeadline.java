@@ -0,0 +1,104 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A restartable deadline that runs an action once it passes, without a timer operation per
+ * restart.
+ * <p>
+ * {@link #start(long)} only records the new deadline. A single task is kept scheduled on the
+ * {@link SessionTimer}; when it runs before the current deadline it re-arms itself for the
+ * remaining time, so a deadline that is pushed back on every message costs one volatile write
+ * per message and at most one timer task per delay.
+ */
+final class SessionDeadline implements Runnable {
+	private static final long NONE = Long.MIN_VALUE;
+
+	private final SessionTimer timer;
+	private final Runnable action;
+	private final AtomicLong deadline = new AtomicLong(NONE);
+	private final AtomicBoolean armed = new AtomicBoolean(false);
+
+	SessionDeadline(SessionTimer timer, Runnable action) {
+		this.timer = timer;
+		this.action = action;
+	}
+
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+
+	/**
+	 * Run the action delay milliseconds from now, replacing the previous deadline.
+	 */
+	void start(long delay) {
+		deadline.set(now() + delay);
+		if (!armed.get() && armed.compareAndSet(false, true)) {
+			timer.schedule(this, delay);
+		}
+	}
+
+	/**
+	 * Cancel the deadline. The scheduled task, if any, is left to expire and does nothing.
+	 */
+	void clear() {
+		if (deadline.get() != NONE) {
+			deadline.set(NONE);
+		}
+	}
+
+	boolean isSet() {
+		return deadline.get() != NONE;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			boolean expired = false;
+			long d = deadline.get();
+			if (d != NONE) {
+				long remaining = d - now();
+				if (remaining > 0) {
+					timer.schedule(this, remaining);
+					return;
+				}
+				if (!deadline.compareAndSet(d, NONE)) {
+					continue;
+				}
+				expired = true;
+			}
+			armed.set(false);
+			if (expired) {
+				action.run();
+			}
+			// A start() that saw the task still armed must not be lost.
+			if (deadline.get() == NONE || !armed.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stripe of the sessions of a servlet. Every shard has its own session map and its own
+ * {@link SessionTimer}, so session lifecycle and timer work on different shards don't contend.
+ * A session belongs to the shard selected by the hash of its id.
+ */
+public final class SessionShard {
+	private final int index;
+	private final SessionTimer timer;
+	private final ConcurrentMap<String, SocketIOSession> sessions = new ConcurrentHashMap<String, SocketIOSession>();
+	private final AtomicLong created = new AtomicLong(0);
+	private final AtomicLong removed = new AtomicLong(0);
+	private final AtomicLong timedOut = new AtomicLong(0);
+
+	SessionShard(int index, SessionTimer timer) {
+		this.index = index;
+		this.timer = timer;
+	}
+
+	SessionTimer getTimer() {
+		return timer;
+	}
+
+	void add(SocketIOSession session) {
+		sessions.put(session.getSessionId(), session);
+		created.incrementAndGet();
+	}
+
+	SocketIOSession get(String sessionId) {
+		return sessions.get(sessionId);
+	}
+
+	/**
+	 * @return false if the session had already been removed.
+	 */
+	boolean remove(String sessionId) {
+		if (sessions.remove(sessionId) != null) {
+			removed.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	Collection<SocketIOSession> getSessions() {
+		return sessions.values();
+	}
+
+	void onTimeout() {
+		timedOut.incrementAndGet();
+	}
+
+	void stop() {
+		timer.stop();
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return The number of sessions currently in this shard.
+	 */
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	public long getCreated() {
+		return created.get();
+	}
+
+	public long getRemoved() {
+		return removed.get();
+	}
+
+	/**
+	 * @return The number of sessions of this shard that timed out.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SessionShard[" + index + "]: sessions=" + getSessionCount() + ", created=" + getCreated() +
+			", removed=" + getRemoved() + ", timedOut=" + getTimedOut();
+	}
+}
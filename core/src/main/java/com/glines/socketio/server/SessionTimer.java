@@ -0,0 +1,43 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+/**
+ * Runs the delayed tasks (heartbeat and timeout timers) of the sessions created by a
+ * {@link SocketIOSession.Factory}. Tasks are expected to be short; implementations may run
+ * all of them on a single thread.
+ */
+public interface SessionTimer {
+	/**
+	 * Schedule a task to be run once.
+	 * @param task The task to execute after specified delay.
+	 * @param delay Delay in milliseconds.
+	 * @return A handle that can be used to cancel the task.
+	 */
+	SocketIOSession.SessionTask schedule(Runnable task, long delay);
+
+	/**
+	 * Release the resources held by this timer. Pending tasks will not be run.
+	 */
+	void stop();
+}
@@ -22,9 +22,12 @@
  */
 package com.glines.socketio.server;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.eclipse.jetty.util.B64Code;
+
 public class SocketIOFrame {
 	public static final char SEPERATOR_CHAR = '~';
 	public enum FrameType {
@@ -71,63 +74,24 @@ public class SocketIOFrame {
 
 	public static final int TEXT_MESSAGE_TYPE = 0;
 	public static final int JSON_MESSAGE_TYPE = 1;
+	/**
+	 * Binary messages. Transports that can't send binary data carry them in DATA frames of
+	 * this type, with the payload encoded in base64.
+	 */
+	public static final int BINARY_MESSAGE_TYPE = 2;
 	
-	private static boolean isHexDigit(String str, int start, int end) {
-		for (int i = start; i < end; i++) {
-			char c = str.charAt(i);
-			if (!Character.isDigit(c) &&
-					c < 'A' && c > 'F' && c < 'a' && c > 'f') {
-				return false;
-			}
-		}
-		return true;
-	}
-	
+	/**
+	 * Parse data into a list of frames. This is a convenience wrapper around
+	 * {@link SocketIOFrameParser}, which should be preferred on hot paths.
+	 */
 	public static List<SocketIOFrame> parse(String data) {
-		List<SocketIOFrame> messages = new ArrayList<SocketIOFrame>();
-		int idx = 0;
-
-		// Parse the data and silently ignore any part that fails to parse properly.
-		while (data.length() > idx && data.charAt(idx) == SEPERATOR_CHAR) {
-			int start = idx + 1;
-			int end = data.indexOf(SEPERATOR_CHAR, start);
-
-			if (-1 == end || start == end || !isHexDigit(data, start, end)) {
-				break;
-			}
-
-			int mtype = 0;
-			int ftype = Integer.parseInt(data.substring(start, start + 1), 16);
-
-			FrameType frameType = FrameType.fromInt(ftype);
-			if (frameType == FrameType.UNKNOWN) {
-				break;
-			}
-
-			if (end - start > 1) {
-				mtype = Integer.parseInt(data.substring(start + 1, end), 16);
+		final List<SocketIOFrame> messages = new ArrayList<SocketIOFrame>();
+		SocketIOFrameParser.parse(data, 0, data.length(), new SocketIOFrameParser.FrameHandler() {
+			@Override
+			public void onFrame(FrameType frameType, int messageType, CharSequence buf, int offset, int length) {
+				messages.add(new SocketIOFrame(frameType, messageType, buf.subSequence(offset, offset + length).toString()));
 			}
-			
-			start = end + 1;
-			end = data.indexOf(SEPERATOR_CHAR, start);
-
-			if (-1 == end || start == end || !isHexDigit(data, start, end)) {
-				break;
-			}
-			
-			int size = Integer.parseInt(data.substring(start, end), 16);
-
-			start = end + 1;
-			end = start + size;
-
-			if (data.length() < end) {
-				break;
-			}
-			
-			messages.add(new SocketIOFrame(frameType, mtype, data.substring(start, end)));
-			idx = end;
-		}
-		
+		});
 		return messages;
 	}
 	
@@ -145,6 +109,54 @@ public class SocketIOFrame {
 		return str.toString();
 	}
 	
+	/**
+	 * Encode a data message as FRAGMENT frames of at most fragmentSize chars, followed by
+	 * a DATA frame holding the rest of the message. Surrogate pairs are never split.
+	 * @return The encoded frames, in order. A single DATA frame if the message is not larger
+	 * than fragmentSize.
+	 */
+	public static String[] encodeFragments(int messageType, String data, int fragmentSize) {
+		if (fragmentSize < 2) {
+			throw new IllegalArgumentException("fragmentSize must be at least 2: " + fragmentSize);
+		}
+		List<String> frames = new ArrayList<String>(data.length() / fragmentSize + 1);
+		int start = 0;
+		while (data.length() - start > fragmentSize) {
+			int end = start + fragmentSize;
+			if (Character.isHighSurrogate(data.charAt(end - 1))) {
+				end--;
+			}
+			frames.add(encode(FrameType.FRAGMENT, messageType, data.substring(start, end)));
+			start = end;
+		}
+		frames.add(encode(FrameType.DATA, messageType, data.substring(start)));
+		return frames.toArray(new String[frames.size()]);
+	}
+
+	/**
+	 * Encode the bytes between the position and the limit of data in base64, for use as the
+	 * payload of a {@link #BINARY_MESSAGE_TYPE} frame. The position of the buffer is not modified.
+	 */
+	public static String encodeBinary(ByteBuffer data) {
+		byte[] bytes;
+		if (data.hasArray() && data.arrayOffset() == 0 && data.position() == 0
+				&& data.remaining() == data.array().length) {
+			bytes = data.array();
+		} else {
+			bytes = new byte[data.remaining()];
+			data.duplicate().get(bytes);
+		}
+		return new String(B64Code.encode(bytes));
+	}
+
+	/**
+	 * Decode the payload of a {@link #BINARY_MESSAGE_TYPE} frame.
+	 * @throws IllegalArgumentException if data isn't valid base64.
+	 */
+	public static ByteBuffer decodeBinary(String data) {
+		return ByteBuffer.wrap(B64Code.decode(data));
+	}
+
 	private final FrameType frameType;
 	private final int messageType;
 	private final String data;
@@ -170,4 +182,8 @@ public class SocketIOFrame {
 	public String encode() {
 		return encode(frameType, messageType, data);
 	}
+
+	public PreEncodedFrame preEncode() {
+		return new PreEncodedFrame(frameType, messageType, data);
+	}
 }
@@ -0,0 +1,277 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import com.glines.socketio.server.SocketIOFrame.FrameType;
+
+/**
+ * Parses a sequence of encoded frames ({@code ~<type>[<mtype>]~<size>~<data>}) without
+ * building intermediate lists or substrings. Each frame is reported to a handler as an
+ * offset/length view of the parsed buffer.
+ * <p>
+ * As with {@link SocketIOFrame#parse(String)}, parsing silently stops at the first part that
+ * fails to parse properly. The parse methods return how much of the input was consumed by
+ * complete frames, so a caller that receives data in chunks can keep the remainder.
+ */
+public final class SocketIOFrameParser {
+	public interface FrameHandler {
+		/**
+		 * Called once per parsed frame. The view is only valid for the duration of the call.
+		 *
+		 * @param data The buffer being parsed.
+		 * @param offset Index of the first char of the frame payload in data.
+		 * @param length Length of the frame payload in chars.
+		 */
+		void onFrame(FrameType frameType, int messageType, CharSequence data, int offset, int length);
+	}
+
+	public interface ByteFrameHandler {
+		/**
+		 * Called once per parsed frame. The view is only valid for the duration of the call.
+		 *
+		 * @param data The buffer being parsed.
+		 * @param offset Absolute index of the first byte of the UTF-8 encoded payload in data.
+		 * @param length Length of the frame payload in bytes.
+		 */
+		void onFrame(FrameType frameType, int messageType, ByteBuffer data, int offset, int length);
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Frame header fields are limited to 7 hex digits so they can't overflow an int.
+	 */
+	private static final int MAX_HEX_DIGITS = 7;
+
+	private SocketIOFrameParser() {
+	}
+
+	private static int hexValue(int c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		} else if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		} else if (c >= 'A' && c <= 'F') {
+			return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	/**
+	 * Parse the frames found in data[offset, offset+length).
+	 *
+	 * @return The number of chars consumed by complete frames.
+	 */
+	public static int parse(CharSequence data, int offset, int length, FrameHandler handler) {
+		final int limit = offset + length;
+		int idx = offset;
+
+		while (idx < limit && data.charAt(idx) == SocketIOFrame.SEPERATOR_CHAR) {
+			int pos = idx + 1;
+
+			// Frame type: a single hex digit, optionally followed by the message type.
+			if (pos >= limit) {
+				break;
+			}
+			int ftype = hexValue(data.charAt(pos++));
+			if (ftype < 0) {
+				break;
+			}
+			FrameType frameType = FrameType.fromInt(ftype);
+			if (frameType == FrameType.UNKNOWN) {
+				break;
+			}
+			int mtype = 0;
+			int digits = 0;
+			int c = -1;
+			while (pos < limit && (c = data.charAt(pos)) != SocketIOFrame.SEPERATOR_CHAR) {
+				int v = hexValue(c);
+				if (v < 0 || ++digits > MAX_HEX_DIGITS) {
+					break;
+				}
+				mtype = (mtype << 4) | v;
+				pos++;
+			}
+			if (pos >= limit || c != SocketIOFrame.SEPERATOR_CHAR) {
+				break;
+			}
+			pos++;
+
+			// Payload size.
+			int size = 0;
+			digits = 0;
+			c = -1;
+			while (pos < limit && (c = data.charAt(pos)) != SocketIOFrame.SEPERATOR_CHAR) {
+				int v = hexValue(c);
+				if (v < 0 || ++digits > MAX_HEX_DIGITS) {
+					break;
+				}
+				size = (size << 4) | v;
+				pos++;
+			}
+			if (digits == 0 || pos >= limit || c != SocketIOFrame.SEPERATOR_CHAR) {
+				break;
+			}
+			pos++;
+
+			if (limit - pos < size) {
+				break;
+			}
+
+			handler.onFrame(frameType, mtype, data, pos, size);
+			idx = pos + size;
+		}
+
+		return idx - offset;
+	}
+
+	/**
+	 * Parse the frames found in data[offset, offset+length). The array is not copied.
+	 *
+	 * @return The number of chars consumed by complete frames.
+	 */
+	public static int parse(char[] data, int offset, int length, FrameHandler handler) {
+		return parse(CharBuffer.wrap(data), offset, length, handler);
+	}
+
+	/**
+	 * Parse the UTF-8 encoded frames found between the position and the limit of data.
+	 * The frame size field counts UTF-16 chars, so the payload is walked once to find its
+	 * byte length, but it is never decoded. The position of the buffer is not modified.
+	 *
+	 * @return The number of bytes consumed by complete frames.
+	 */
+	public static int parse(ByteBuffer data, ByteFrameHandler handler) {
+		final int start = data.position();
+		final int limit = data.limit();
+		int idx = start;
+
+		while (idx < limit && data.get(idx) == SocketIOFrame.SEPERATOR_CHAR) {
+			int pos = idx + 1;
+
+			if (pos >= limit) {
+				break;
+			}
+			int ftype = hexValue(data.get(pos++));
+			if (ftype < 0) {
+				break;
+			}
+			FrameType frameType = FrameType.fromInt(ftype);
+			if (frameType == FrameType.UNKNOWN) {
+				break;
+			}
+			int mtype = 0;
+			int digits = 0;
+			int c = -1;
+			while (pos < limit && (c = data.get(pos)) != SocketIOFrame.SEPERATOR_CHAR) {
+				int v = hexValue(c);
+				if (v < 0 || ++digits > MAX_HEX_DIGITS) {
+					break;
+				}
+				mtype = (mtype << 4) | v;
+				pos++;
+			}
+			if (pos >= limit || c != SocketIOFrame.SEPERATOR_CHAR) {
+				break;
+			}
+			pos++;
+
+			int size = 0;
+			digits = 0;
+			c = -1;
+			while (pos < limit && (c = data.get(pos)) != SocketIOFrame.SEPERATOR_CHAR) {
+				int v = hexValue(c);
+				if (v < 0 || ++digits > MAX_HEX_DIGITS) {
+					break;
+				}
+				size = (size << 4) | v;
+				pos++;
+			}
+			if (digits == 0 || pos >= limit || c != SocketIOFrame.SEPERATOR_CHAR) {
+				break;
+			}
+			pos++;
+
+			int end = skipChars(data, pos, limit, size);
+			if (end < 0) {
+				break;
+			}
+
+			handler.onFrame(frameType, mtype, data, pos, end - pos);
+			idx = end;
+		}
+
+		return idx - start;
+	}
+
+	/**
+	 * @return The index following count UTF-16 chars of UTF-8 encoded data starting at pos,
+	 * or -1 if the data ends first.
+	 */
+	private static int skipChars(ByteBuffer data, int pos, int limit, int count) {
+		while (count > 0) {
+			if (pos >= limit) {
+				return -1;
+			}
+			int b = data.get(pos) & 0xFF;
+			if (b < 0x80) {
+				pos += 1;
+				count -= 1;
+			} else if (b < 0xE0) {
+				pos += 2;
+				count -= 1;
+			} else if (b < 0xF0) {
+				pos += 3;
+				count -= 1;
+			} else {
+				// Supplementary code point, encoded as a surrogate pair.
+				pos += 4;
+				count -= 2;
+			}
+		}
+		return count == 0 && pos <= limit ? pos : -1;
+	}
+
+	/**
+	 * Decode a frame payload reported to a {@link ByteFrameHandler}.
+	 */
+	public static String toString(ByteBuffer data, int offset, int length) {
+		if (data.hasArray()) {
+			try {
+				return new String(data.array(), data.arrayOffset() + offset, length, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		} else {
+			ByteBuffer view = data.duplicate();
+			view.limit(offset + length);
+			view.position(offset);
+			return UTF_8.decode(view).toString();
+		}
+	}
+}
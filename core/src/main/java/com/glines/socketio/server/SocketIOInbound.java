@@ -22,6 +22,8 @@
  */
 package com.glines.socketio.server;
 
+import java.nio.ByteBuffer;
+
 import com.glines.socketio.common.DisconnectReason;
 
 public interface SocketIOInbound {
@@ -50,4 +52,12 @@ public interface SocketIOInbound {
      * @param message
      */
     void onMessage(int messageType, String message);
+
+    /**
+     * Called once per arriving binary message. The buffer is not shared with the transport,
+     * so it can be kept after the call returns.
+     *
+     * @param message
+     */
+    void onMessage(ByteBuffer message);
 }
@@ -22,6 +22,8 @@
  */
 package com.glines.socketio.server;
 
+import java.nio.ByteBuffer;
+
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.SocketIOException;
 
@@ -63,4 +65,65 @@ public interface SocketIOOutbound {
      * @throws SocketIOException
      */
     void sendMessage(int messageType, String message) throws SocketIOException;
+
+    /**
+     * Send a binary message. The bytes between the position and the limit of the buffer are
+     * sent; the position is not modified, and the buffer must not be modified until the send
+     * completes. Transports that can't send binary data encode it in base64 as a
+     * {@link SocketIOFrame#BINARY_MESSAGE_TYPE} message.
+     *
+     * @param message The message to send
+     * @throws IllegalStateException if the socket is not CONNECTED.
+     * @throws SocketIOException
+     */
+    void sendMessage(ByteBuffer message) throws SocketIOException;
+
+    /**
+     * Send a frame that has already been encoded. This is the preferred way to send the same
+     * message to many connections, since the frame is only encoded once.
+     * Like {@link #sendMessage(int, String)}, DATA frames can only be sent while the socket is
+     * CONNECTED.
+     *
+     * @param frame The pre-encoded frame.
+     * @throws SocketIOException
+     */
+    void sendEncoded(PreEncodedFrame frame) throws SocketIOException;
+
+    /**
+     * Send a message without blocking. The returned future completes with
+     * {@link SendResult#SENT} once the message has been written or buffered,
+     * {@link SendResult#TIMEOUT} if it couldn't be within the transport's maxIdleTime (in which
+     * case the connection is dropped), or {@link SendResult#CLOSED} if the socket is, or
+     * becomes, closed first.
+     * Messages sent with this method and with the blocking methods are delivered in order.
+     *
+     * @param messageType
+     * @param message
+     * @return The completion handle of the send.
+     */
+    SendFuture sendMessageAsync(int messageType, String message);
+
+    /**
+     * Non-blocking version of {@link #sendMessage(ByteBuffer)}.
+     * See {@link #sendMessageAsync(int, String)}.
+     *
+     * @param message The message to send
+     * @return The completion handle of the send.
+     */
+    SendFuture sendMessageAsync(ByteBuffer message);
+
+    /**
+     * Non-blocking version of {@link #sendEncoded(PreEncodedFrame)}.
+     * See {@link #sendMessageAsync(int, String)}.
+     *
+     * @param frame The pre-encoded frame.
+     * @return The completion handle of the send.
+     */
+    SendFuture sendEncodedAsync(PreEncodedFrame frame);
+
+    /**
+     * Set what happens to data messages when the outbound buffer of this socket is full.
+     * Transports that don't buffer messages themselves ignore it.
+     */
+    void setOverflowPolicy(OverflowPolicy policy);
 }
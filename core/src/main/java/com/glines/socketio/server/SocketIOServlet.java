@@ -23,24 +23,28 @@
 package com.glines.socketio.server;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.log.Log;
 
+import com.glines.socketio.server.transport.EventSourceTransport;
 import com.glines.socketio.server.transport.FlashSocketTransport;
 import com.glines.socketio.server.transport.HTMLFileTransport;
 import com.glines.socketio.server.transport.JSONPPollingTransport;
+import com.glines.socketio.server.transport.StaticResource;
 import com.glines.socketio.server.transport.WebSocketTransport;
 import com.glines.socketio.server.transport.XHRMultipartTransport;
 import com.glines.socketio.server.transport.XHRPollingTransport;
+import com.glines.socketio.server.transport.XHRStreamingTransport;
 
 /**
  */
@@ -49,9 +53,23 @@ public abstract class SocketIOServlet extends HttpServlet {
 	public static final String MAX_IDLE_TIME_INIT_PARAM = "maxIdleTime";
 	public static final int BUFFER_SIZE_DEFAULT = 8192;
 	public static final int MAX_IDLE_TIME_DEFAULT = 300*1000;
+	public static final String TIMER_TICK_DURATION_INIT_PARAM = "timerTickDuration";
+	public static final String TIMER_WHEEL_SIZE_INIT_PARAM = "timerWheelSize";
+	public static final String OUTBOUND_MEMORY_BUDGET_INIT_PARAM = "outboundMemoryBudget";
+	public static final String LOAD_SHEDDING_INIT_PARAM = "loadShedding";
+	public static final String SESSION_SHARDS_INIT_PARAM = "sessionShards";
+	public static final String NODE_ID_INIT_PARAM = "nodeId";
+	public static final String INBOUND_THREADS_INIT_PARAM = "inboundThreads";
+	public static final String INBOUND_QUEUE_DEPTH_INIT_PARAM = "inboundQueueDepth";
+	public static final String INBOUND_REJECTION_INIT_PARAM = "inboundRejection";
+	public static final String MAX_MESSAGE_SIZE_INIT_PARAM = "maxMessageSize";
+	public static final int MAX_MESSAGE_SIZE_DEFAULT = 1024*1024;
+	public static final String STATIC_MAX_AGE_INIT_PARAM = "staticMaxAge";
+	private static final String SOCKETIO_JS_NAME = "com/glines/socketio/socket.io.js";
 	private static final long serialVersionUID = 1L;
 	private SocketIOSessionManager sessionManager = null;
 	private Map<String, Transport> transports = new HashMap<String, Transport>();
+	private StaticResource socketIOJs = null;
 
 	@Override
 	public void init() throws ServletException {
@@ -61,23 +79,34 @@ public abstract class SocketIOServlet extends HttpServlet {
 		str = this.getInitParameter(MAX_IDLE_TIME_INIT_PARAM);
 		int maxIdleTime = str==null ? MAX_IDLE_TIME_DEFAULT : Integer.parseInt(str);
 
-		sessionManager = new SocketIOSessionManager();
-		WebSocketTransport websocketTransport = new WebSocketTransport(bufferSize, maxIdleTime);
-		FlashSocketTransport flashsocketTransport = new FlashSocketTransport(bufferSize, maxIdleTime);
-		HTMLFileTransport htmlFileTransport = new HTMLFileTransport(bufferSize, maxIdleTime);
-		XHRMultipartTransport xhrMultipartTransport = new XHRMultipartTransport(bufferSize, maxIdleTime);
-		XHRPollingTransport xhrPollingTransport = new XHRPollingTransport(bufferSize, maxIdleTime);
-		JSONPPollingTransport jsonpPollingTransport = new JSONPPollingTransport(bufferSize, maxIdleTime);
-		transports.put(websocketTransport.getName(), websocketTransport);
-		transports.put(flashsocketTransport.getName(), flashsocketTransport);
-		transports.put(htmlFileTransport.getName(), htmlFileTransport);
-		transports.put(xhrMultipartTransport.getName(), xhrMultipartTransport);
-		transports.put(xhrPollingTransport.getName(), xhrPollingTransport);
-		transports.put(jsonpPollingTransport.getName(), jsonpPollingTransport);
+		str = this.getInitParameter(SESSION_SHARDS_INIT_PARAM);
+		int shards = str==null ? 1 : Integer.parseInt(str);
+		List<SessionTimer> timers = new ArrayList<SessionTimer>();
+		for (int i = 0; i < Math.max(shards, 1); i++) {
+			timers.add(createSessionTimer());
+		}
+
+		sessionManager = new SocketIOSessionManager(timers, createMemoryBudget(),
+				createInboundDispatcher(), createSessionIdGenerator());
+		str = this.getInitParameter(MAX_MESSAGE_SIZE_INIT_PARAM);
+		if (str != null) {
+			sessionManager.setMaxMessageSize(Integer.parseInt(str));
+		}
+		for (Transport t: createTransports(bufferSize, maxIdleTime)) {
+			transports.put(t.getName(), t);
+		}
 		
 		for (Transport t: transports.values()) {
 			t.init(this.getServletConfig());
 		}
+
+		str = this.getInitParameter(STATIC_MAX_AGE_INIT_PARAM);
+		int maxAge = str==null ? StaticResource.MAX_AGE_DEFAULT : Integer.parseInt(str);
+		try {
+			socketIOJs = StaticResource.load(SOCKETIO_JS_NAME, "text/javascript", maxAge);
+		} catch (IOException e) {
+			throw new ServletException("Failed to load " + SOCKETIO_JS_NAME, e);
+		}
 	}
 
     @Override
@@ -103,10 +132,11 @@ public abstract class SocketIOServlet extends HttpServlet {
     	Transport transport = transports.get(parts[0]);
     	if (transport == null) {
     		if ("GET".equals(request.getMethod()) && "socket.io.js".equals(parts[0])) {
-				response.setContentType("text/javascript");
-				InputStream is = this.getClass().getClassLoader().getResourceAsStream("com/glines/socketio/socket.io.js");
-				OutputStream os = response.getOutputStream();
-				IO.copy(is, os);
+				if (socketIOJs != null) {
+					socketIOJs.serve(request, response);
+				} else {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				}
 				return;
     		} else {
 	    		response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown SocketIO transport");
@@ -118,6 +148,11 @@ public abstract class SocketIOServlet extends HttpServlet {
 
 			@Override
 			public SocketIOInbound getInbound(HttpServletRequest request) {
+				OutboundMemoryBudget budget = sessionManager.getMemoryBudget();
+				if (budget != null && budget.refuseConnect()) {
+					Log.debug("Refusing connection: outbound memory budget exhausted");
+					return null;
+				}
 				return SocketIOServlet.this.doSocketIOConnect(request);
 			}
   			
@@ -129,9 +164,154 @@ public abstract class SocketIOServlet extends HttpServlet {
     	for (Transport t: transports.values()) {
     		t.destroy();
     	}
+    	sessionManager.destroy();
     	super.destroy();
     }
 
+    /**
+     * @return The totals of the messages buffered for all the sessions of this servlet.
+     */
+    public OutboundBufferStats getOutboundBufferStats() {
+    	return sessionManager.getOutboundBufferStats();
+    }
+
+    /**
+     * @return The stats of the messages buffered for a session, or null if there is no such session.
+     */
+    public OutboundBufferStats getOutboundBufferStats(String sessionId) {
+    	SocketIOSession session = sessionManager.getSession(sessionId);
+    	return session == null ? null : session.getOutboundBufferStats();
+    }
+
+    /**
+     * @return The shards the sessions of this servlet are striped over. Their number is set by
+     * the sessionShards init parameter (1 by default).
+     */
+    public List<SessionShard> getSessionShards() {
+    	return sessionManager.getShards();
+    }
+
+    /**
+     * @return The dispatcher of the inbound callbacks, or null if they run on the container
+     * thread that received the message.
+     */
+    public InboundDispatcher getInboundDispatcher() {
+    	return sessionManager.getInboundDispatcher();
+    }
+
+    /**
+     * @return The inbound callback queue of a session, or null if there is no such session or
+     * no dispatcher.
+     */
+    public InboundDispatcher.SessionQueue getInboundQueue(String sessionId) {
+    	SocketIOSession session = sessionManager.getSession(sessionId);
+    	return session == null ? null : session.getInboundQueue();
+    }
+
+    /**
+     * Creates the transports served by this servlet. The client selects a transport by its
+     * name, so a subclass can replace a transport with another implementation of the same
+     * protocol by returning it instead.
+     */
+    protected List<Transport> createTransports(int bufferSize, int maxIdleTime) {
+    	List<Transport> list = new ArrayList<Transport>();
+		list.add(new WebSocketTransport(bufferSize, maxIdleTime));
+		list.add(new FlashSocketTransport(bufferSize, maxIdleTime));
+		list.add(new EventSourceTransport(bufferSize, maxIdleTime));
+		list.add(new HTMLFileTransport(bufferSize, maxIdleTime));
+		list.add(new XHRMultipartTransport(bufferSize, maxIdleTime));
+		list.add(new XHRStreamingTransport(bufferSize, maxIdleTime));
+		list.add(new XHRPollingTransport(bufferSize, maxIdleTime));
+		list.add(new JSONPPollingTransport(bufferSize, maxIdleTime));
+		return list;
+    }
+
+    /**
+     * @return The memory budget shared by the outbound buffers of all sessions, or null if
+     * the outboundMemoryBudget init parameter isn't set.
+     */
+    public OutboundMemoryBudget getOutboundMemoryBudget() {
+    	return sessionManager.getMemoryBudget();
+    }
+
+    /**
+     * Creates the memory budget shared by the outbound buffers of all sessions from the
+     * outboundMemoryBudget (bytes, unlimited if not set) and loadShedding
+     * ("none", "largest" (the default) or "slowest") init parameters.
+     * @return The budget, or null for no limit.
+     */
+    protected OutboundMemoryBudget createMemoryBudget() {
+		String str = this.getInitParameter(OUTBOUND_MEMORY_BUDGET_INIT_PARAM);
+		long limit = str==null ? 0 : Long.parseLong(str);
+		if (limit <= 0) {
+			return null;
+		}
+		str = this.getInitParameter(LOAD_SHEDDING_INIT_PARAM);
+		OutboundMemoryBudget.ShedPolicy policy = str==null ?
+				OutboundMemoryBudget.ShedPolicy.LARGEST : OutboundMemoryBudget.ShedPolicy.valueOf(str.toUpperCase());
+		return new OutboundMemoryBudget(limit, policy);
+    }
+
+    /**
+     * Creates the generator of the session ids. The default is a
+     * {@link DefaultSessionIdGenerator} whose ids are prefixed with the nodeId init parameter,
+     * if it is set.
+     */
+    protected SessionIdGenerator createSessionIdGenerator() {
+		return new DefaultSessionIdGenerator(this.getInitParameter(NODE_ID_INIT_PARAM),
+				DefaultSessionIdGenerator.SESSION_ID_LENGTH_DEFAULT);
+    }
+
+    /**
+     * Creates the dispatcher that runs the {@link SocketIOInbound} callbacks of each session in
+     * order, off the container threads, from the inboundThreads (the number of pool threads,
+     * or "virtual" for a virtual thread per callback where the JVM supports it; callbacks run
+     * on the container threads if not set), inboundQueueDepth (messages per session) and
+     * inboundRejection ("block" (the default), "drop" or "disconnect") init parameters.
+     * @return The dispatcher, or null to run the callbacks on the container threads.
+     */
+    protected InboundDispatcher createInboundDispatcher() {
+		String str = this.getInitParameter(INBOUND_THREADS_INIT_PARAM);
+		if (str == null) {
+			return null;
+		}
+		ExecutorService executor = null;
+		if ("virtual".equalsIgnoreCase(str)) {
+			executor = InboundDispatcher.newVirtualThreadExecutor();
+			if (executor == null) {
+				Log.warn("Virtual threads are not available, using a pool of " +
+						Runtime.getRuntime().availableProcessors() + " inbound threads");
+				executor = InboundDispatcher.newThreadPool(Runtime.getRuntime().availableProcessors());
+			}
+		} else {
+			int threads = Integer.parseInt(str);
+			if (threads <= 0) {
+				return null;
+			}
+			executor = InboundDispatcher.newThreadPool(threads);
+		}
+		str = this.getInitParameter(INBOUND_QUEUE_DEPTH_INIT_PARAM);
+		int depth = str==null ? InboundDispatcher.MAX_QUEUE_DEPTH_DEFAULT : Integer.parseInt(str);
+		str = this.getInitParameter(INBOUND_REJECTION_INIT_PARAM);
+		InboundDispatcher.RejectionPolicy policy = str==null ?
+				InboundDispatcher.RejectionPolicy.BLOCK : InboundDispatcher.RejectionPolicy.valueOf(str.toUpperCase());
+		return new InboundDispatcher(executor, depth, policy);
+    }
+
+    /**
+     * Creates the timer used for the heartbeat and timeout tasks of the sessions of one shard.
+     * It is called once per shard.
+     * The default is a {@link HashedWheelSessionTimer} configured from the
+     * timerTickDuration and timerWheelSize init parameters.
+     */
+    protected SessionTimer createSessionTimer() {
+		String str = this.getInitParameter(TIMER_TICK_DURATION_INIT_PARAM);
+		long tickDuration = str==null ? HashedWheelSessionTimer.TICK_DURATION_DEFAULT : Long.parseLong(str);
+		str = this.getInitParameter(TIMER_WHEEL_SIZE_INIT_PARAM);
+		int wheelSize = str==null ? HashedWheelSessionTimer.WHEEL_SIZE_DEFAULT : Integer.parseInt(str);
+		return new HashedWheelSessionTimer(tickDuration, wheelSize);
+    }
+
     /**
      * Returns an instance of SocketIOInbound or null if the connection is to be denied.
      * The value of cookies and protocols may be null.
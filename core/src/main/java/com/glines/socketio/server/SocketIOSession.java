@@ -23,6 +23,7 @@
 package com.glines.socketio.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -65,12 +66,33 @@ public interface SocketIOSession {
 	SocketIOInbound getInbound();
 
 	SessionTransportHandler getTransportHandler();
+
+	/**
+	 * @return The stats of the messages buffered for this session by its transport.
+	 */
+	OutboundBufferStats getOutboundBufferStats();
+
+	/**
+	 * @return The queue of the inbound callbacks of this session, or null if they are run on
+	 * the thread that received the message.
+	 */
+	InboundDispatcher.SessionQueue getInboundQueue();
+
+	/**
+	 * @return The maximum size of a message reassembled from fragments, in chars for
+	 * FRAGMENT frames and in bytes for fragmented binary WebSocket frames.
+	 */
+	int getMaxMessageSize();
 	
 	void setHeartbeat(long delay);
 	long getHeartbeat();
 	void setTimeout(long timeout);
 	long getTimeout();
 
+	/**
+	 * (Re)start the timers. Restarting only records a new deadline, so it is cheap enough to
+	 * do on every message.
+	 */
 	void startTimeoutTimer();
 	void clearTimeoutTimer();
 
@@ -106,6 +128,12 @@ public interface SocketIOSession {
 	 * @param message
 	 */
 	void onMessage(String message);
+
+	/**
+	 * Pass a binary message through to contained SocketIOInbound.
+	 * @param message A buffer that is not reused by the caller.
+	 */
+	void onMessage(ByteBuffer message);
 	
 	/**
 	 * Pass disconnect through to contained SocketIOInbound and update any internal state.
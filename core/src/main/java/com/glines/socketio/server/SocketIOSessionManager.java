@@ -22,14 +22,12 @@
  */
 package com.glines.socketio.server;
 
-import java.security.SecureRandom;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jetty.util.log.Log;
@@ -39,46 +37,98 @@ import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
 
 class SocketIOSessionManager implements SocketIOSession.Factory {
-	private static final char[] BASE64_ALPHABET =
-	      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
-	      .toCharArray();
-	private static final int SESSION_ID_LENGTH = 20;
-
-	private static Random random = new SecureRandom();
-	private ConcurrentMap<String, SocketIOSession> socketIOSessions = new ConcurrentHashMap<String, SocketIOSession>();
-	private ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
-
-	private static String generateRandomString(int length) {
-	    StringBuilder result = new StringBuilder(length);
-	    byte[] bytes = new byte[length];
-	    random.nextBytes(bytes);
-	    for (int i = 0; i < bytes.length; i++) {
-	      result.append(BASE64_ALPHABET[bytes[i] & 0x3F]);
-	    }
-	    return result.toString();
+	private final SessionIdGenerator idGenerator;
+	private final SessionShard[] shards;
+	private final OutboundBufferStats outboundBufferStats = new OutboundBufferStats();
+	private final OutboundMemoryBudget memoryBudget;
+	private final InboundDispatcher inboundDispatcher;
+	private volatile int maxMessageSize = SocketIOServlet.MAX_MESSAGE_SIZE_DEFAULT;
+
+	SocketIOSessionManager(SessionTimer timer) {
+		this(Collections.singletonList(timer), null, null, new DefaultSessionIdGenerator());
+	}
+
+	/**
+	 * @param timers The timers of the session shards, one per shard.
+	 * @param memoryBudget Budget shared by the outbound buffers of all sessions, or null.
+	 * @param inboundDispatcher Dispatcher of the inbound callbacks, or null to run them on
+	 * the thread that received the message.
+	 * @param idGenerator Generator of the session ids.
+	 */
+	SocketIOSessionManager(List<SessionTimer> timers, OutboundMemoryBudget memoryBudget,
+			InboundDispatcher inboundDispatcher, SessionIdGenerator idGenerator) {
+		if (timers.isEmpty()) {
+			throw new IllegalArgumentException("At least one session timer is required");
+		}
+		this.shards = new SessionShard[timers.size()];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new SessionShard(i, timers.get(i));
+		}
+		this.memoryBudget = memoryBudget;
+		this.inboundDispatcher = inboundDispatcher;
+		this.idGenerator = idGenerator;
+		if (memoryBudget != null) {
+			final Runnable shedTask = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						shedLoad();
+					} finally {
+						SocketIOSessionManager.this.memoryBudget.onShedComplete();
+					}
+				}
+			};
+			memoryBudget.setShedder(new Runnable() {
+				@Override
+				public void run() {
+					shards[0].getTimer().schedule(shedTask, 0);
+				}
+			});
+		}
 	}
 
 	private class SessionImpl implements SocketIOSession {
 		private final String sessionId;
+		private final SessionShard shard;
 		private SocketIOInbound inbound;
 		private SessionTransportHandler handler = null;
 		private ConnectionState state = ConnectionState.CONNECTING;
 		private long hbDelay = 0;
-		private SessionTask hbDelayTask = null;
 		private long timeout = 0;
-		private SessionTask timeoutTask = null;
 		private boolean timedout = false;
 		private AtomicLong messageId = new AtomicLong(0);
 		private String closeId = null;
+		private final OutboundBufferStats bufferStats = new OutboundBufferStats(outboundBufferStats, memoryBudget);
+		private final InboundDispatcher.SessionQueue inboundQueue;
+		private final SessionDeadline timeoutDeadline;
+		private final SessionDeadline heartbeatDeadline;
+		// Reassembly of the message whose FRAGMENT frames are being received.
+		private StringBuilder fragments = null;
+		private int fragmentsType;
+		private boolean fragmentsDropped = false;
 
-		SessionImpl(String sessionId, SocketIOInbound inbound) {
+		SessionImpl(String sessionId, SessionShard shard, SocketIOInbound inbound) {
 			this.sessionId = sessionId;
+			this.shard = shard;
+			this.timeoutDeadline = new SessionDeadline(shard.getTimer(), new Runnable() {
+				@Override
+				public void run() {
+					onTimeout();
+				}
+			});
+			this.heartbeatDeadline = new SessionDeadline(shard.getTimer(), new Runnable() {
+				@Override
+				public void run() {
+					sendPing();
+				}
+			});
 			this.inbound = inbound;
+			this.inboundQueue = inboundDispatcher == null ? null : inboundDispatcher.createQueue(sessionId);
 		}
 
 		@Override
 		public String generateRandomString(int length) {
-			return SocketIOSessionManager.generateRandomString(length);
+			return idGenerator.generateRandomString(length);
 		}
 		
 		@Override
@@ -101,9 +151,38 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 			return handler;
 		}
 
+		@Override
+		public OutboundBufferStats getOutboundBufferStats() {
+			return bufferStats;
+		}
+
+		@Override
+		public InboundDispatcher.SessionQueue getInboundQueue() {
+			return inboundQueue;
+		}
+
+		@Override
+		public int getMaxMessageSize() {
+			return maxMessageSize;
+		}
+
+		/**
+		 * Disconnect this session to release its outbound buffer.
+		 */
+		private void shed() {
+			Log.info("Session["+sessionId+"]: disconnected to free outbound buffer memory");
+			if (!timedout && handler != null) {
+				timedout = true;
+				state = ConnectionState.CLOSED;
+				onDisconnect(DisconnectReason.TIMEOUT);
+				handler.abort();
+			}
+		}
+
 		private void onTimeout() {
 			Log.debug("Session["+sessionId+"]: onTimeout");
 			if (!timedout) {
+				shard.onTimeout();
 				timedout = true;
 				state = ConnectionState.CLOSED;
 				onDisconnect(DisconnectReason.TIMEOUT);
@@ -113,23 +192,16 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 		
 		@Override
 		public void startTimeoutTimer() {
-			clearTimeoutTimer();
 			if (!timedout && timeout > 0) {
-				timeoutTask = scheduleTask(new Runnable() {
-					@Override
-					public void run() {
-						SessionImpl.this.onTimeout();
-					}
-				}, timeout);
+				timeoutDeadline.start(timeout);
+			} else {
+				timeoutDeadline.clear();
 			}
 		}
 
 		@Override
 		public void clearTimeoutTimer() {
-			if (timeoutTask != null) {
-				timeoutTask.cancel();
-				timeoutTask = null;
-			}
+			timeoutDeadline.clear();
 		}
 		
 		private void sendPing() {
@@ -146,23 +218,16 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 
 		@Override
 		public void startHeartbeatTimer() {
-			clearHeartbeatTimer();
 			if (!timedout && hbDelay > 0) {
-				hbDelayTask = scheduleTask(new Runnable() {
-					@Override
-					public void run() {
-						sendPing();
-					}
-				}, hbDelay);
+				heartbeatDeadline.start(hbDelay);
+			} else {
+				heartbeatDeadline.clear();
 			}
 		}
 
 		@Override
 		public void clearHeartbeatTimer() {
-			if (hbDelayTask != null) {
-				hbDelayTask.cancel();
-				hbDelayTask = null;
-			}
+			heartbeatDeadline.clear();
 		}
 
 		@Override
@@ -218,7 +283,14 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 				break;
 			case DATA:
 				Log.debug("Session["+sessionId+"]: onMessage: " + message.getData());
-				onMessage(message.getData());
+				if (fragments != null || fragmentsDropped) {
+					onLastFragment(message);
+				} else {
+					onData(message.getMessageType(), message.getData());
+				}
+				break;
+			case FRAGMENT:
+				onFragment(message);
 				break;
 			default:
 				// Ignore unknown message types
@@ -226,6 +298,70 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 			}
 		}
 
+		private void onData(int messageType, String data) {
+			if (messageType == SocketIOFrame.BINARY_MESSAGE_TYPE) {
+				ByteBuffer buffer;
+				try {
+					buffer = SocketIOFrame.decodeBinary(data);
+				} catch (IllegalArgumentException e) {
+					Log.debug("Session["+sessionId+"]: invalid binary message: " + e);
+					return;
+				}
+				onMessage(buffer);
+			} else {
+				onMessage(data);
+			}
+		}
+
+		/**
+		 * A message too large to be sent in one frame is sent as FRAGMENT frames followed by a
+		 * DATA frame of the same message type. Other frame types may be interleaved. The
+		 * message is reassembled up to maxMessageSize chars; the fragments of a larger message
+		 * are discarded as they arrive.
+		 */
+		private void onFragment(SocketIOFrame message) {
+			if (fragmentsDropped) {
+				return;
+			}
+			if (fragments != null && fragmentsType != message.getMessageType()) {
+				Log.debug("Session["+sessionId+"]: fragment type changed, discarding partial message");
+				fragments = null;
+			}
+			if (fragments == null) {
+				fragments = new StringBuilder();
+				fragmentsType = message.getMessageType();
+			}
+			if (fragments.length() + message.getData().length() > maxMessageSize) {
+				dropFragments();
+			} else {
+				fragments.append(message.getData());
+			}
+		}
+
+		private void onLastFragment(SocketIOFrame message) {
+			if (fragmentsDropped) {
+				fragmentsDropped = false;
+				return;
+			}
+			StringBuilder data = fragments;
+			fragments = null;
+			if (fragmentsType != message.getMessageType()) {
+				Log.debug("Session["+sessionId+"]: fragment type changed, discarding partial message");
+				onData(message.getMessageType(), message.getData());
+			} else if (data.length() + message.getData().length() > maxMessageSize) {
+				dropFragments();
+				fragmentsDropped = false;
+			} else {
+				onData(fragmentsType, data.append(message.getData()).toString());
+			}
+		}
+
+		private void dropFragments() {
+			Log.info("Session["+sessionId+"]: fragmented message larger than " + maxMessageSize + " chars discarded");
+			fragments = null;
+			fragmentsDropped = true;
+		}
+
 		@Override
 		public void onPing(String data) {
 			try {
@@ -270,13 +406,7 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 
 		@Override
 		public SessionTask scheduleTask(Runnable task, long delay) {
-			final Future<?> future = executor.schedule(task, delay, TimeUnit.MILLISECONDS);
-			return new SessionTask() {
-				@Override
-				public boolean cancel() {
-					return future.cancel(false);
-				}
-			};
+			return shard.getTimer().schedule(task, delay);
 		}
 		
 		@Override
@@ -284,30 +414,100 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 			if (handler == null) {
 				state = ConnectionState.CLOSED;
 				inbound = null;
-				socketIOSessions.remove(sessionId);
+				removeSession();
 			} else if (this.handler == null) {
 				this.handler = handler;
-				try {
-					state = ConnectionState.CONNECTED;
-					inbound.onConnect(handler);
-				} catch (Throwable e) {
-					Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onConnect()", e);
-					state = ConnectionState.CLOSED;
-					handler.abort();
+				state = ConnectionState.CONNECTED;
+				if (inboundQueue == null) {
+					fireConnect(inbound, handler);
+				} else {
+					final SocketIOInbound inbound = this.inbound;
+					final SessionTransportHandler h = handler;
+					inboundQueue.executeAlways(new Runnable() {
+						@Override
+						public void run() {
+							fireConnect(inbound, h);
+						}
+					});
 				}
 			} else {
 				handler.abort();
 			}
 		}
 
+		private void fireConnect(SocketIOInbound inbound, SessionTransportHandler handler) {
+			try {
+				inbound.onConnect(handler);
+			} catch (Throwable e) {
+				Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onConnect()", e);
+				state = ConnectionState.CLOSED;
+				handler.abort();
+			}
+		}
+
 		@Override
-		public void onMessage(String message) {
-			if (inbound != null) {
-				try {
-					inbound.onMessage(SocketIOFrame.TEXT_MESSAGE_TYPE, message);
-				} catch (Throwable e) {
-					Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onMessage()", e);
+		public void onMessage(final String message) {
+			final SocketIOInbound inbound = this.inbound;
+			if (inbound == null) {
+				return;
+			}
+			if (inboundQueue == null) {
+				fireMessage(inbound, message);
+			} else if (!inboundQueue.execute(new Runnable() {
+					@Override
+					public void run() {
+						fireMessage(inbound, message);
+					}
+				})) {
+				onInboundRejected();
+			}
+		}
+
+		private void fireMessage(SocketIOInbound inbound, String message) {
+			try {
+				inbound.onMessage(SocketIOFrame.TEXT_MESSAGE_TYPE, message);
+			} catch (Throwable e) {
+				Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onMessage()", e);
+			}
+		}
+
+		@Override
+		public void onMessage(final ByteBuffer message) {
+			final SocketIOInbound inbound = this.inbound;
+			if (inbound == null) {
+				return;
+			}
+			if (inboundQueue == null) {
+				fireMessage(inbound, message);
+			} else if (!inboundQueue.execute(new Runnable() {
+					@Override
+					public void run() {
+						fireMessage(inbound, message);
+					}
+				})) {
+				onInboundRejected();
+			}
+		}
+
+		private void fireMessage(SocketIOInbound inbound, ByteBuffer message) {
+			try {
+				inbound.onMessage(message);
+			} catch (Throwable e) {
+				Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onMessage()", e);
+			}
+		}
+
+		private void onInboundRejected() {
+			if (inboundDispatcher.getRejectionPolicy() == InboundDispatcher.RejectionPolicy.DISCONNECT) {
+				Log.info("Session["+sessionId+"]: disconnected because its inbound queue is full");
+				if (!timedout && handler != null) {
+					timedout = true;
+					state = ConnectionState.CLOSED;
+					onDisconnect(DisconnectReason.ERROR);
+					handler.abort();
 				}
+			} else {
+				Log.debug("Session["+sessionId+"]: inbound queue full, message dropped");
 			}
 		}
 
@@ -318,14 +518,29 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 			clearHeartbeatTimer();
 			if (inbound != null) {
 				state = ConnectionState.CLOSED;
-				try {
-					inbound.onDisconnect(reason, null);
-				} catch (Throwable e) {
-					Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onDisconnect()", e);
+				if (inboundQueue == null) {
+					fireDisconnect(inbound, reason);
+				} else {
+					final SocketIOInbound inbound = this.inbound;
+					final DisconnectReason r = reason;
+					inboundQueue.executeAlways(new Runnable() {
+						@Override
+						public void run() {
+							fireDisconnect(inbound, r);
+						}
+					});
 				}
 				inbound = null;
 			}
 		}
+
+		private void fireDisconnect(SocketIOInbound inbound, DisconnectReason reason) {
+			try {
+				inbound.onDisconnect(reason, null);
+			} catch (Throwable e) {
+				Log.warn("Session["+sessionId+"]: Exception thrown by SocketIOInbound.onDisconnect()", e);
+			}
+		}
 		
 		@Override
 		public void onShutdown() {
@@ -341,23 +556,136 @@ class SocketIOSessionManager implements SocketIOSession.Factory {
 					onDisconnect(DisconnectReason.ERROR);
 				}
 			}
-			socketIOSessions.remove(sessionId);
+			removeSession();
+		}
+
+		private void removeSession() {
+			if (shard.remove(sessionId) && memoryBudget != null) {
+				memoryBudget.onSessionRemoved();
+			}
 		}
 	}
 	
-	private String generateSessionId() {
-		return generateRandomString(SESSION_ID_LENGTH);
+	/**
+	 * Disconnect sessions, in the order given by the shed policy of the budget, until the
+	 * buffered bytes fall under its low watermark.
+	 */
+	private void shedLoad() {
+		if (memoryBudget.getUsedBytes() <= memoryBudget.getLowWatermark()) {
+			return;
+		}
+		List<SessionImpl> candidates = new ArrayList<SessionImpl>();
+		for (SessionShard shard: shards) {
+			for (SocketIOSession session: shard.getSessions()) {
+				if (session.getOutboundBufferStats().getBufferedBytes() > 0) {
+					candidates.add((SessionImpl)session);
+				}
+			}
+		}
+		Comparator<SessionImpl> order;
+		if (memoryBudget.getShedPolicy() == OutboundMemoryBudget.ShedPolicy.SLOWEST) {
+			order = new Comparator<SessionImpl>() {
+				@Override
+				public int compare(SessionImpl s1, SessionImpl s2) {
+					long t1 = s1.bufferStats.getLastReleaseTime();
+					long t2 = s2.bufferStats.getLastReleaseTime();
+					return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+				}
+			};
+		} else {
+			order = new Comparator<SessionImpl>() {
+				@Override
+				public int compare(SessionImpl s1, SessionImpl s2) {
+					long b1 = s1.bufferStats.getBufferedBytes();
+					long b2 = s2.bufferStats.getBufferedBytes();
+					return b1 > b2 ? -1 : (b1 == b2 ? 0 : 1);
+				}
+			};
+		}
+		Collections.sort(candidates, order);
+		for (SessionImpl session: candidates) {
+			if (memoryBudget.getUsedBytes() <= memoryBudget.getLowWatermark()) {
+				break;
+			}
+			try {
+				session.shed();
+				memoryBudget.onShed();
+			} catch (Throwable t) {
+				Log.warn("Session["+session.getSessionId()+"]: Exception thrown while shedding", t);
+			}
+		}
+	}
+
+	private SessionShard getShard(String sessionId) {
+		if (shards.length == 1) {
+			return shards[0];
+		}
+		int h = sessionId.hashCode();
+		h ^= (h >>> 16);
+		return shards[(h & 0x7fffffff) % shards.length];
 	}
 
 	@Override
 	public SocketIOSession createSession(SocketIOInbound inbound) {
-		SessionImpl impl = new SessionImpl(generateSessionId(), inbound);
-		socketIOSessions.put(impl.getSessionId(), impl);
+		String sessionId = idGenerator.generateSessionId();
+		SessionShard shard = getShard(sessionId);
+		SessionImpl impl = new SessionImpl(sessionId, shard, inbound);
+		shard.add(impl);
+		if (memoryBudget != null) {
+			memoryBudget.onSessionCreated();
+		}
 		return impl;
 	}
 
 	@Override
 	public SocketIOSession getSession(String sessionId) {
-		return socketIOSessions.get(sessionId);
+		return getShard(sessionId).get(sessionId);
+	}
+
+	/**
+	 * @return The memory budget of the outbound buffers, or null if there is none.
+	 */
+	OutboundMemoryBudget getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set the maximum size, in chars, of a message reassembled from fragments. The fragments
+	 * of larger messages are discarded.
+	 */
+	void setMaxMessageSize(int maxMessageSize) {
+		this.maxMessageSize = maxMessageSize;
+	}
+
+	int getMaxMessageSize() {
+		return maxMessageSize;
+	}
+
+	OutboundBufferStats getOutboundBufferStats() {
+		return outboundBufferStats;
+	}
+
+	/**
+	 * @return The dispatcher of the inbound callbacks, or null if they run on the thread that
+	 * received the message.
+	 */
+	InboundDispatcher getInboundDispatcher() {
+		return inboundDispatcher;
+	}
+
+	/**
+	 * @return The session shards, ordered by index.
+	 */
+	List<SessionShard> getShards() {
+		return Collections.unmodifiableList(Arrays.asList(shards));
+	}
+
+	void destroy() {
+		for (SessionShard shard: shards) {
+			shard.stop();
+		}
+		if (inboundDispatcher != null) {
+			inboundDispatcher.shutdown();
+		}
 	}
 }
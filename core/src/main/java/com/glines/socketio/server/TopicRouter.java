@@ -0,0 +1,473 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Routes published messages to the sockets subscribed to matching topics.
+ * <p>
+ * Topics are hierarchical, with levels separated by {@code '.'}. A subscription pattern may use
+ * {@code *} to match exactly one level ({@code a.*.c} matches {@code a.b.c}) and, as its last
+ * level, {@code #} to match zero or more levels ({@code a.#} matches {@code a}, {@code a.b} and
+ * {@code a.b.c}). Patterns are stored in a trie, so a publish only visits the nodes that can
+ * match its topic, however many topics have subscribers. A socket whose subscriptions match a
+ * topic more than once receives the message once.
+ * <p>
+ * Each socket has an index of its own subscriptions, so {@link #unsubscribeAll(SocketIOOutbound)},
+ * typically called from {@link SocketIOInbound#onDisconnect}, costs O(subscriptions of that
+ * socket). Messages are encoded once per publish and handed to subscribers with
+ * {@link SocketIOOutbound#sendEncodedAsync(PreEncodedFrame)}.
+ */
+public class TopicRouter {
+	public static final char LEVEL_SEPARATOR = '.';
+	public static final String SINGLE_LEVEL_WILDCARD = "*";
+	public static final String MULTI_LEVEL_WILDCARD = "#";
+	private static final SocketIOOutbound[] NO_SUBSCRIBERS = new SocketIOOutbound[0];
+
+	/**
+	 * A node of the trie. The node reached by a subscription pattern holds the sockets
+	 * subscribed to it and counts the messages that matched the pattern.
+	 */
+	private static final class Node {
+		private final Node parent;
+		private final String level;
+		// Guarded by the write lock of the router.
+		private Map<String, Node> children = null;
+		private Node singleWildcard = null;
+		private Node multiWildcard = null;
+		private final Set<SocketIOOutbound> subscribers = new LinkedHashSet<SocketIOOutbound>();
+		// Rebuilt lazily by readers after a subscriber change.
+		private volatile SocketIOOutbound[] snapshot = NO_SUBSCRIBERS;
+		private final AtomicLong messages = new AtomicLong(0);
+
+		Node(Node parent, String level) {
+			this.parent = parent;
+			this.level = level;
+		}
+
+		Node child(String level, boolean create) {
+			if (SINGLE_LEVEL_WILDCARD.equals(level)) {
+				if (singleWildcard == null && create) {
+					singleWildcard = new Node(this, level);
+				}
+				return singleWildcard;
+			} else if (MULTI_LEVEL_WILDCARD.equals(level)) {
+				if (multiWildcard == null && create) {
+					multiWildcard = new Node(this, level);
+				}
+				return multiWildcard;
+			}
+			Node child = children == null ? null : children.get(level);
+			if (child == null && create) {
+				if (children == null) {
+					children = new HashMap<String, Node>();
+				}
+				child = new Node(this, level);
+				children.put(level, child);
+			}
+			return child;
+		}
+
+		boolean isEmpty() {
+			return subscribers.isEmpty() && singleWildcard == null && multiWildcard == null &&
+				(children == null || children.isEmpty());
+		}
+
+		void removeChild(Node child) {
+			if (child == singleWildcard) {
+				singleWildcard = null;
+			} else if (child == multiWildcard) {
+				multiWildcard = null;
+			} else if (children != null) {
+				children.remove(child.level);
+			}
+		}
+
+		SocketIOOutbound[] getSubscribers() {
+			SocketIOOutbound[] members = snapshot;
+			if (members == null) {
+				// Readers hold the read lock, so the set can't change while it is copied.
+				members = subscribers.toArray(new SocketIOOutbound[subscribers.size()]);
+				snapshot = members;
+			}
+			return members;
+		}
+	}
+
+	private final String name;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Node root = new Node(null, null);
+	private final ConcurrentMap<SocketIOOutbound, Map<String, Node>> subscriptions =
+		new ConcurrentHashMap<SocketIOOutbound, Map<String, Node>>();
+
+	private final AtomicLong published = new AtomicLong(0);
+	private final AtomicLong unrouted = new AtomicLong(0);
+	private final AtomicLong deliveries = new AtomicLong(0);
+	private final AtomicLong sent = new AtomicLong(0);
+	private final AtomicLong dropped = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+	private final SendFuture.Listener deliveryListener = new SendFuture.Listener() {
+		@Override
+		public void onSendComplete(SendResult result) {
+			switch (result) {
+			case SENT:
+				sent.incrementAndGet();
+				break;
+			case DROPPED:
+				dropped.incrementAndGet();
+				break;
+			default:
+				failed.incrementAndGet();
+				break;
+			}
+		}
+	};
+
+	public TopicRouter(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	private static String[] split(String topic) {
+		int count = 1;
+		for (int i = 0; i < topic.length(); i++) {
+			if (topic.charAt(i) == LEVEL_SEPARATOR) {
+				count++;
+			}
+		}
+		String[] levels = new String[count];
+		int start = 0;
+		for (int i = 0; i < count - 1; i++) {
+			int end = topic.indexOf(LEVEL_SEPARATOR, start);
+			levels[i] = topic.substring(start, end);
+			start = end + 1;
+		}
+		levels[count - 1] = topic.substring(start);
+		return levels;
+	}
+
+	private static String[] parsePattern(String pattern) {
+		String[] levels = split(pattern);
+		for (int i = 0; i < levels.length - 1; i++) {
+			if (MULTI_LEVEL_WILDCARD.equals(levels[i])) {
+				throw new IllegalArgumentException("'" + MULTI_LEVEL_WILDCARD +
+					"' is only allowed as the last level of a pattern: " + pattern);
+			}
+		}
+		return levels;
+	}
+
+	/**
+	 * Subscribe a socket to the topics matching pattern.
+	 * @return false if the socket was already subscribed to this pattern.
+	 * @throws IllegalArgumentException if the pattern is invalid.
+	 */
+	public boolean subscribe(SocketIOOutbound outbound, String pattern) {
+		String[] levels = parsePattern(pattern);
+		lock.writeLock().lock();
+		try {
+			Map<String, Node> own = subscriptions.get(outbound);
+			if (own == null) {
+				own = new HashMap<String, Node>();
+				subscriptions.put(outbound, own);
+			} else if (own.containsKey(pattern)) {
+				return false;
+			}
+			Node node = root;
+			for (String level: levels) {
+				node = node.child(level, true);
+			}
+			node.subscribers.add(outbound);
+			node.snapshot = null;
+			own.put(pattern, node);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return false if the socket was not subscribed to this pattern.
+	 */
+	public boolean unsubscribe(SocketIOOutbound outbound, String pattern) {
+		lock.writeLock().lock();
+		try {
+			Map<String, Node> own = subscriptions.get(outbound);
+			Node node = own == null ? null : own.remove(pattern);
+			if (node == null) {
+				return false;
+			}
+			if (own.isEmpty()) {
+				subscriptions.remove(outbound);
+			}
+			remove(node, outbound);
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove all the subscriptions of a socket.
+	 * @return The number of subscriptions removed.
+	 */
+	public int unsubscribeAll(SocketIOOutbound outbound) {
+		lock.writeLock().lock();
+		try {
+			Map<String, Node> own = subscriptions.remove(outbound);
+			if (own == null) {
+				return 0;
+			}
+			for (Node node: own.values()) {
+				remove(node, outbound);
+			}
+			return own.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void remove(Node node, SocketIOOutbound outbound) {
+		node.subscribers.remove(outbound);
+		node.snapshot = null;
+		// Prune the branch that no longer leads to any subscriber.
+		while (node.parent != null && node.isEmpty()) {
+			node.parent.removeChild(node);
+			node = node.parent;
+		}
+	}
+
+	/**
+	 * @return The patterns a socket is subscribed to.
+	 */
+	public Set<String> getSubscriptions(SocketIOOutbound outbound) {
+		lock.readLock().lock();
+		try {
+			Map<String, Node> own = subscriptions.get(outbound);
+			if (own == null) {
+				return Collections.emptySet();
+			}
+			return new LinkedHashSet<String>(own.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of sockets with at least one subscription.
+	 */
+	public int getSubscriberCount() {
+		return subscriptions.size();
+	}
+
+	/**
+	 * Send a message to every socket subscribed to a pattern matching topic.
+	 * @return The number of sockets the message was handed to.
+	 */
+	public int publish(String topic, int messageType, String message) {
+		return publish(topic, new PreEncodedFrame(messageType, message), null);
+	}
+
+	/**
+	 * Send a pre-encoded frame to every socket subscribed to a pattern matching topic,
+	 * except except, which may be null.
+	 * @return The number of sockets the frame was handed to.
+	 */
+	public int publish(String topic, PreEncodedFrame frame, SocketIOOutbound except) {
+		String[] levels = split(topic);
+		List<Node> matches = new ArrayList<Node>(4);
+		SocketIOOutbound[] targets;
+		lock.readLock().lock();
+		try {
+			match(root, levels, 0, matches);
+			targets = collect(matches);
+		} finally {
+			lock.readLock().unlock();
+		}
+		published.incrementAndGet();
+		for (Node node: matches) {
+			node.messages.incrementAndGet();
+		}
+
+		int count = 0;
+		for (SocketIOOutbound outbound: targets) {
+			if (outbound == except) {
+				continue;
+			}
+			count++;
+			try {
+				outbound.sendEncodedAsync(frame).addListener(deliveryListener);
+			} catch (Throwable t) {
+				failed.incrementAndGet();
+				Log.warn("TopicRouter[" + name + "]: delivery to " + topic + " failed", t);
+			}
+		}
+		if (count == 0) {
+			unrouted.incrementAndGet();
+		}
+		deliveries.addAndGet(count);
+		return count;
+	}
+
+	private static void match(Node node, String[] levels, int index, List<Node> matches) {
+		if (node.multiWildcard != null && !node.multiWildcard.subscribers.isEmpty()) {
+			matches.add(node.multiWildcard);
+		}
+		if (index == levels.length) {
+			if (!node.subscribers.isEmpty()) {
+				matches.add(node);
+			}
+			return;
+		}
+		Node child = node.children == null ? null : node.children.get(levels[index]);
+		if (child != null) {
+			match(child, levels, index + 1, matches);
+		}
+		if (node.singleWildcard != null) {
+			match(node.singleWildcard, levels, index + 1, matches);
+		}
+	}
+
+	private static SocketIOOutbound[] collect(List<Node> matches) {
+		if (matches.isEmpty()) {
+			return NO_SUBSCRIBERS;
+		} else if (matches.size() == 1) {
+			return matches.get(0).getSubscribers();
+		}
+		Map<SocketIOOutbound, Boolean> unique = new IdentityHashMap<SocketIOOutbound, Boolean>();
+		for (Node node: matches) {
+			for (SocketIOOutbound outbound: node.getSubscribers()) {
+				unique.put(outbound, Boolean.TRUE);
+			}
+		}
+		return unique.keySet().toArray(new SocketIOOutbound[unique.size()]);
+	}
+
+	private Node find(String pattern) {
+		Node node = root;
+		for (String level: split(pattern)) {
+			node = node.child(level, false);
+			if (node == null) {
+				break;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * @return The number of published messages that matched pattern since it was first
+	 * subscribed to, or 0 if nobody is subscribed to it.
+	 */
+	public long getPublishCount(String pattern) {
+		lock.readLock().lock();
+		try {
+			Node node = find(pattern);
+			return node == null ? 0 : node.messages.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The publish counter of every pattern that currently has subscribers.
+	 */
+	public Map<String, Long> getPublishCounts() {
+		Map<String, Long> counts = new HashMap<String, Long>();
+		lock.readLock().lock();
+		try {
+			for (Map<String, Node> own: subscriptions.values()) {
+				for (Map.Entry<String, Node> entry: own.entrySet()) {
+					counts.put(entry.getKey(), entry.getValue().messages.get());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return counts;
+	}
+
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return The number of published messages that matched no subscriber.
+	 */
+	public long getUnrouted() {
+		return unrouted.get();
+	}
+
+	/**
+	 * @return The number of messages handed to subscribers.
+	 */
+	public long getDeliveries() {
+		return deliveries.get();
+	}
+
+	/**
+	 * @return The number of messages written or buffered by subscribers.
+	 */
+	public long getSent() {
+		return sent.get();
+	}
+
+	/**
+	 * @return The number of messages discarded by the overflow policy of subscribers.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return The number of messages that could not be delivered because a subscriber was
+	 * closed or too slow.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "TopicRouter[" + name + "]: subscribers=" + getSubscriberCount() + ", published=" + getPublished() +
+			", unrouted=" + getUnrouted() + ", deliveries=" + getDeliveries() + ", sent=" + getSent() +
+			", dropped=" + getDropped() + ", failed=" + getFailed();
+	}
+}
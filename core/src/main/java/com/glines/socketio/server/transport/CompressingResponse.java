@@ -0,0 +1,286 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.glines.socketio.server.CompressionStats;
+
+/**
+ * Response wrapper that compresses the body with gzip or deflate.
+ * <p>
+ * A polling response is compressed as a single gzip member that is only written out by
+ * {@link #finish()}, since nothing is gained by flushing part of a response the client only
+ * reads once complete. A streaming response is sync flushed by every {@link #flushBuffer()},
+ * so each frame written reaches the browser as soon as it is sent.
+ * <p>
+ * The Content-Encoding header is only set once the body is written to, so error responses
+ * are sent uncompressed.
+ */
+final class CompressingResponse extends HttpServletResponseWrapper {
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String encoding;
+	private final boolean streaming;
+	private final int level;
+	private final CompressionStats stats;
+	private CompressingOutputStream stream = null;
+	private PrintWriter writer = null;
+
+	/**
+	 * @return The encoding to use for a request with this Accept-Encoding header, or null
+	 * if it accepts neither gzip nor deflate.
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		boolean deflate = false;
+		for (String token: acceptEncoding.split(",")) {
+			String[] parts = token.trim().split(";");
+			String name = parts[0].trim().toLowerCase();
+			if (parts.length > 1 && parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) {
+				continue;
+			}
+			if (GZIP.equals(name) || "x-gzip".equals(name)) {
+				return GZIP;
+			} else if (DEFLATE.equals(name)) {
+				deflate = true;
+			}
+		}
+		return deflate ? DEFLATE : null;
+	}
+
+	CompressingResponse(HttpServletResponse response, String encoding, boolean streaming, int level, CompressionStats stats) {
+		super(response);
+		this.encoding = encoding;
+		this.streaming = streaming;
+		this.level = level;
+		this.stats = stats;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (stream == null) {
+			setHeader("Content-Encoding", encoding);
+			addHeader("Vary", "Accept-Encoding");
+			stream = new CompressingOutputStream(super.getOutputStream());
+		}
+		return stream;
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+		}
+		return writer;
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		// The compressed length is not known in advance.
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		if (stream != null && streaming) {
+			stream.flush();
+		}
+		super.flushBuffer();
+	}
+
+	/**
+	 * Write the end of the compressed body. Must be called before the response is completed.
+	 */
+	void finish() throws IOException {
+		if (writer != null) {
+			writer.flush();
+		}
+		if (stream != null) {
+			stream.finish();
+		}
+	}
+
+	/**
+	 * Release the deflater without writing the end of the compressed body.
+	 */
+	void end() {
+		if (stream != null) {
+			stream.end();
+		}
+	}
+
+	private final class CompressingOutputStream extends ServletOutputStream {
+		private final ServletOutputStream out;
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final byte[] input = new byte[BUFFER_SIZE];
+		private int inputLength = 0;
+		private byte[] output = new byte[BUFFER_SIZE];
+		private boolean headerWritten = false;
+		private boolean finished = false;
+		private long bytesIn = 0;
+		private long bytesOut = 0;
+
+		CompressingOutputStream(ServletOutputStream out) {
+			this.out = out;
+			this.deflater = new Deflater(level, GZIP.equals(encoding));
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (inputLength == input.length) {
+				deflateInput();
+			}
+			input[inputLength++] = (byte)b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len <= input.length - inputLength) {
+				System.arraycopy(b, off, input, inputLength, len);
+				inputLength += len;
+			} else {
+				deflateInput();
+				setInput(b, off, len);
+				drain();
+			}
+		}
+
+		private void setInput(byte[] b, int off, int len) throws IOException {
+			if (finished) {
+				throw new IOException("Compressed response already finished");
+			}
+			if (GZIP.equals(encoding)) {
+				crc.update(b, off, len);
+			}
+			bytesIn += len;
+			deflater.setInput(b, off, len);
+		}
+
+		private void deflateInput() throws IOException {
+			if (inputLength > 0) {
+				setInput(input, 0, inputLength);
+				inputLength = 0;
+				drain();
+			}
+		}
+
+		private void drain() throws IOException {
+			while (!deflater.needsInput()) {
+				writeOutput(deflater.deflate(output, 0, output.length));
+			}
+		}
+
+		private void writeOutput(int len) throws IOException {
+			if (len <= 0) {
+				return;
+			}
+			if (!headerWritten) {
+				writeHeader();
+			}
+			out.write(output, 0, len);
+			bytesOut += len;
+		}
+
+		private void writeHeader() throws IOException {
+			headerWritten = true;
+			if (GZIP.equals(encoding)) {
+				// Magic, deflate method, no flags, no mtime, no extra flags, unknown OS.
+				byte[] header = {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+				out.write(header);
+				bytesOut += header.length;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			long start = CompressionStats.currentTime();
+			long in = bytesIn;
+			long before = bytesOut;
+			deflateInput();
+			int len;
+			do {
+				len = MessageDeflater.syncFlush(deflater, output, 0, output.length);
+				writeOutput(len);
+			} while (len == output.length);
+			out.flush();
+			stats.onCompressed((int)(bytesIn - in), (int)(bytesOut - before), CompressionStats.currentTime() - start);
+		}
+
+		void finish() throws IOException {
+			if (finished) {
+				return;
+			}
+			long start = CompressionStats.currentTime();
+			long in = bytesIn;
+			long before = bytesOut;
+			try {
+				deflateInput();
+				finished = true;
+				deflater.finish();
+				while (!deflater.finished()) {
+					writeOutput(deflater.deflate(output, 0, output.length));
+				}
+				if (GZIP.equals(encoding)) {
+					byte[] trailer = new byte[8];
+					writeInt(trailer, 0, crc.getValue());
+					writeInt(trailer, 4, deflater.getTotalIn());
+					out.write(trailer);
+					bytesOut += trailer.length;
+				}
+			} finally {
+				deflater.end();
+			}
+			stats.onCompressed((int)(bytesIn - in), (int)(bytesOut - before), CompressionStats.currentTime() - start);
+		}
+
+		void end() {
+			if (!finished) {
+				finished = true;
+				deflater.end();
+			}
+		}
+
+		private void writeInt(byte[] b, int off, long v) {
+			b[off] = (byte)v;
+			b[off + 1] = (byte)(v >> 8);
+			b[off + 2] = (byte)(v >> 16);
+			b[off + 3] = (byte)(v >> 24);
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.ajax.JSON;
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOSession;
+import com.glines.socketio.server.transport.ConnectionTimeoutPreventor.IdleCheck;
+
+/**
+ * Streams frames to the client as a text/event-stream (Server-Sent Events), and receives
+ * frames by POST like the other XHR transports.
+ * <p>
+ * Every write is sent as a single event with an id. The last events written are kept, up to
+ * eventSourceReplaySize chars, so that a client that lost the connection can resume it with
+ * a new GET request carrying the id of the last event it received (in the Last-Event-ID
+ * header or the lastEventId parameter) without losing any message. The kept events are
+ * counted in the session's buffer stats and reserved from its memory budget.
+ */
+public class EventSourceTransport extends XHRTransport {
+	public static final String TRANSPORT_NAME = "eventsource";
+	public static final String REPLAY_SIZE_KEY = "eventSourceReplaySize";
+	public static final int REPLAY_SIZE_DEFAULT = 64*1024;
+	public static final String LAST_EVENT_ID_PARAM = "lastEventId";
+	/**
+	 * Event type of the events whose data is JSON encoded because it contains line breaks.
+	 */
+	public static final String JSON_EVENT = "j";
+	private int replaySize = REPLAY_SIZE_DEFAULT;
+
+	private static final class Event {
+		final long id;
+		final String data;
+		// The UTF-8 size of data, reserved in the session's buffer stats while it is kept.
+		final int size;
+
+		Event(long id, String data) {
+			this.id = id;
+			this.data = data;
+			this.size = TransportBuffer.encodedSize(data);
+		}
+	}
+
+	private class EventSourceSessionHelper extends XHRSessionHelper {
+		private final IdleCheck idleCheck;
+		private final LinkedList<Event> replay = new LinkedList<Event>();
+		private int replayChars = 0;
+		private long lastEventId = 0;
+		// Set by abort(), after which events are no longer kept.
+		private boolean aborted = false;
+
+		EventSourceSessionHelper(SocketIOSession session, IdleCheck idleCheck) {
+			super(session, true);
+			this.idleCheck = idleCheck;
+		}
+
+		protected void startSend(HttpServletResponse response) throws IOException {
+			response.setContentType("text/event-stream");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("Connection", "keep-alive");
+			response.flushBuffer();
+		}
+
+		/**
+		 * The event is kept for replay before it is written, so it isn't lost if the write fails.
+		 * Only the replay list is locked, not this helper, while the event is written. The kept
+		 * events are reserved from the memory budget like buffered messages, which they are
+		 * until the client acknowledges them by resuming after them.
+		 */
+		protected void writeData(ServletResponse response, String data) throws IOException {
+			idleCheck.activity();
+			Event event;
+			synchronized (replay) {
+				event = new Event(++lastEventId, data);
+				if (!aborted) {
+					replay.add(event);
+					replayChars += data.length();
+					session.getOutboundBufferStats().forceBuffer(event.size);
+				}
+				while (replayChars > replaySize && !replay.isEmpty()) {
+					removeFirst();
+				}
+			}
+			ServletOutputStream os = response.getOutputStream();
+			writeEvent(os, event);
+			response.flushBuffer();
+		}
+
+		/**
+		 * Must be called while holding the lock on replay.
+		 */
+		private void removeFirst() {
+			Event event = replay.removeFirst();
+			replayChars -= event.data.length();
+			session.getOutboundBufferStats().onReleased(event.size, 1);
+		}
+
+		private void writeEvent(ServletOutputStream os, Event event) throws IOException {
+			StringBuilder str = new StringBuilder(event.data.length() + 24);
+			str.append("id:").append(Long.toHexString(event.id)).append('\n');
+			if (event.data.indexOf('\n') < 0 && event.data.indexOf('\r') < 0) {
+				str.append("data:").append(event.data);
+			} else {
+				str.append("event:").append(JSON_EVENT).append('\n');
+				str.append("data:").append(JSON.toString(event.data));
+			}
+			str.append("\n\n");
+			os.write(str.toString().getBytes("UTF-8"));
+		}
+
+		protected void finishSend(ServletResponse response) throws IOException {
+		};
+
+		protected void customConnect(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			startSend(response);
+			writeData(response, SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId())
+					+ SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + HEARTBEAT_DELAY));
+		}
+
+		/**
+		 * Also releases the events kept for replay.
+		 */
+		@Override
+		public synchronized void abort() {
+			super.abort();
+			synchronized (replay) {
+				aborted = true;
+				while (!replay.isEmpty()) {
+					removeFirst();
+				}
+			}
+		}
+
+		@Override
+		protected boolean isResumable() {
+			return true;
+		}
+
+		@Override
+		protected boolean resume(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			String str = request.getHeader("Last-Event-ID");
+			if (str == null) {
+				str = request.getParameter(LAST_EVENT_ID_PARAM);
+			}
+			long id;
+			try {
+				id = str != null ? Long.parseLong(str.trim(), 16) : -1;
+			} catch (NumberFormatException e) {
+				id = -1;
+			}
+			List<Event> events;
+			synchronized (replay) {
+				if (id < 0 || id > lastEventId ||
+						(id < lastEventId && (replay.isEmpty() || replay.getFirst().id > id + 1))) {
+					Log.debug("Session["+session.getSessionId()+"]: can't replay events after " + str);
+					return false;
+				}
+				while (!replay.isEmpty() && replay.getFirst().id <= id) {
+					removeFirst();
+				}
+				events = new ArrayList<Event>(replay);
+			}
+			startSend(response);
+			if (!events.isEmpty()) {
+				idleCheck.activity();
+				ServletOutputStream os = response.getOutputStream();
+				for (Event event: events) {
+					writeEvent(os, event);
+				}
+				response.flushBuffer();
+			}
+			return true;
+		}
+	}
+
+	public EventSourceTransport(int bufferSize, int maxIdleTime) {
+		super(bufferSize, maxIdleTime);
+	}
+
+	/**
+	 * Also reads the eventSourceReplaySize init parameter (in chars).
+	 */
+	@Override
+	public void init(ServletConfig config) {
+		super.init(config);
+		String str = config.getInitParameter(REPLAY_SIZE_KEY);
+		if (str != null) {
+			replaySize = Integer.parseInt(str);
+		}
+	}
+
+	@Override
+	protected boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return TRANSPORT_NAME;
+	}
+
+	protected XHRSessionHelper createHelper(SocketIOSession session) {
+		IdleCheck idleCheck = ConnectionTimeoutPreventor.newTimeoutPreventor();
+		return new EventSourceSessionHelper(session, idleCheck);
+	}
+}
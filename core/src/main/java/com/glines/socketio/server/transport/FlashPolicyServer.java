@@ -0,0 +1,344 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Serves the Flash socket policy file from a single thread, with non-blocking channels.
+ * <p>
+ * The policy is encoded once. A connection gets it after sending a request terminated by a
+ * NUL byte, or as long as a policy file request, and is then closed. Connections that don't
+ * complete the exchange within readTimeout are closed, and connections accepted while
+ * maxConnections are open are closed right away.
+ */
+public class FlashPolicyServer {
+	public static final long READ_TIMEOUT_DEFAULT = 5000;
+	public static final int MAX_CONNECTIONS_DEFAULT = 1000;
+	private static final String POLICY_FILE_REQUEST = "<policy-file-request/>";
+
+	private final class Connection {
+		final SocketChannel channel;
+		final long deadline;
+		final ByteBuffer request = ByteBuffer.allocate(POLICY_FILE_REQUEST.length() + 1);
+		ByteBuffer response = null;
+		boolean closed = false;
+
+		Connection(SocketChannel channel, long deadline) {
+			this.channel = channel;
+			this.deadline = deadline;
+		}
+
+		void close() {
+			if (!closed) {
+				closed = true;
+				open--;
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Ignore error on close.
+				}
+			}
+		}
+	}
+
+	private final InetSocketAddress address;
+	private final ByteBuffer policy;
+	private final long readTimeout;
+	private final int maxConnections;
+	private ServerSocketChannel serverChannel = null;
+	private Selector selector = null;
+	private Thread worker = null;
+	private volatile boolean running = false;
+
+	// Only accessed by the worker thread. Every connection has the same timeout, so the
+	// connections are in deadline order.
+	private final LinkedList<Connection> connections = new LinkedList<Connection>();
+	private volatile int open = 0;
+
+	private final AtomicLong accepted = new AtomicLong(0);
+	private final AtomicLong served = new AtomicLong(0);
+	private final AtomicLong rejected = new AtomicLong(0);
+	private final AtomicLong timedOut = new AtomicLong(0);
+	private final AtomicLong failed = new AtomicLong(0);
+
+	/**
+	 * @param readTimeout Time, in milliseconds, a connection has to send its request and
+	 * read the policy.
+	 * @param maxConnections Maximum number of connections served at once.
+	 */
+	public FlashPolicyServer(String host, int port, String domain, String ports,
+			long readTimeout, int maxConnections) {
+		this.address = new InetSocketAddress(host, port);
+		String xml = "<cross-domain-policy><allow-access-from domain=\"" + domain +
+			"\" to-ports=\"" + ports + "\" /></cross-domain-policy>\n\0";
+		try {
+			this.policy = ByteBuffer.wrap(xml.getBytes("UTF-8")).asReadOnlyBuffer();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		this.readTimeout = readTimeout;
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Bind the server socket and start the server thread.
+	 */
+	public synchronized void start() throws IOException {
+		if (running) {
+			return;
+		}
+		serverChannel = ServerSocketChannel.open();
+		try {
+			serverChannel.socket().setReuseAddress(true);
+			serverChannel.socket().bind(address);
+			serverChannel.configureBlocking(false);
+			selector = Selector.open();
+			serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		running = true;
+		worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				FlashPolicyServer.this.run();
+			}
+		}, "SocketIO-FlashPolicyServer");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Stop the server thread, and close the server socket and the open connections.
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		selector.wakeup();
+		if (Thread.currentThread() != worker) {
+			try {
+				worker.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void close() {
+		for (Connection conn: connections) {
+			conn.close();
+		}
+		connections.clear();
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+		} catch (IOException e) {
+			// Ignore error on close.
+		}
+		try {
+			serverChannel.close();
+		} catch (IOException e) {
+			// Ignore error on close.
+		}
+	}
+
+	private void run() {
+		try {
+			while (running) {
+				long timeout = expire(System.currentTimeMillis());
+				selector.select(timeout);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						Connection conn = (Connection)key.attachment();
+						try {
+							if (key.isReadable()) {
+								read(key, conn);
+							} else if (key.isWritable()) {
+								write(conn);
+							}
+						} catch (IOException e) {
+							failed.incrementAndGet();
+							conn.close();
+						}
+					}
+				}
+			}
+		} catch (ClosedSelectorException e) {
+			// Stopped.
+		} catch (IOException e) {
+			Log.warn("Flash policy server failed", e);
+		} finally {
+			running = false;
+			close();
+		}
+	}
+
+	/**
+	 * Close the connections past their deadline.
+	 * @return The time until the next deadline, or 0 if there are no connections.
+	 */
+	private long expire(long now) {
+		while (!connections.isEmpty()) {
+			Connection conn = connections.getFirst();
+			if (conn.closed) {
+				connections.removeFirst();
+			} else if (conn.deadline <= now) {
+				connections.removeFirst();
+				timedOut.incrementAndGet();
+				conn.close();
+			} else {
+				return conn.deadline - now;
+			}
+		}
+		return 0;
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			accepted.incrementAndGet();
+			if (open >= maxConnections) {
+				rejected.incrementAndGet();
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Ignore error on close.
+				}
+				continue;
+			}
+			Connection conn = new Connection(channel, System.currentTimeMillis() + readTimeout);
+			open++;
+			connections.add(conn);
+			try {
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, conn);
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				conn.close();
+			}
+		}
+	}
+
+	private void read(SelectionKey key, Connection conn) throws IOException {
+		int start = conn.request.position();
+		if (conn.channel.read(conn.request) < 0) {
+			// Closed before sending a complete request.
+			failed.incrementAndGet();
+			conn.close();
+			return;
+		}
+		boolean complete = !conn.request.hasRemaining();
+		for (int i = start; i < conn.request.position() && !complete; i++) {
+			complete = conn.request.get(i) == 0;
+		}
+		if (complete) {
+			conn.response = policy.duplicate();
+			key.interestOps(SelectionKey.OP_WRITE);
+			write(conn);
+		}
+	}
+
+	private void write(Connection conn) throws IOException {
+		conn.channel.write(conn.response);
+		if (!conn.response.hasRemaining()) {
+			served.incrementAndGet();
+			conn.close();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The number of connections being served.
+	 */
+	public int getOpenConnections() {
+		return open;
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return The number of connections that got the policy.
+	 */
+	public long getServed() {
+		return served.get();
+	}
+
+	/**
+	 * @return The number of connections closed because maxConnections were open.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return The number of connections closed because they didn't complete within readTimeout.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	/**
+	 * @return The number of connections closed because of an I/O error or an early end of stream.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public String toString() {
+		return "FlashPolicyServer: open=" + getOpenConnections() + ", accepted=" + getAccepted() +
+			", served=" + getServed() + ", rejected=" + getRejected() +
+			", timedOut=" + getTimedOut() + ", failed=" + getFailed();
+	}
+}
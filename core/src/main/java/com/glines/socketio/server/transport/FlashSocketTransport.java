@@ -23,25 +23,12 @@
 package com.glines.socketio.server.transport;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.channels.ClosedChannelException;
-import java.nio.channels.ServerSocketChannel;
-import java.nio.channels.SocketChannel;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.eclipse.jetty.util.IO;
+import org.eclipse.jetty.util.log.Log;
 
 import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.Transport;
@@ -52,16 +39,23 @@ public class FlashSocketTransport extends WebSocketTransport {
 	public static final String FLASHPOLICY_SERVER_PORT_KEY = "flashPolicyServerPort";
 	public static final String FLASHPOLICY_DOMAIN_KEY = "flashPolicyDomain";
 	public static final String FLASHPOLICY_PORTS_KEY = "flashPolicyPorts";
+	public static final String FLASHPOLICY_READ_TIMEOUT_KEY = "flashPolicyReadTimeout";
+	public static final String FLASHPOLICY_MAX_CONNECTIONS_KEY = "flashPolicyMaxConnections";
+	/**
+	 * Same init parameter as SocketIOServlet.STATIC_MAX_AGE_INIT_PARAM.
+	 */
+	public static final String STATIC_MAX_AGE_KEY = "staticMaxAge";
 
 	private static final String FLASHFILE_NAME = "WebSocketMain.swf";
 	private static final String FLASHFILE_PATH = TRANSPORT_NAME + "/" + FLASHFILE_NAME;
-	private ServerSocketChannel flashPolicyServer = null;
-	private ExecutorService executor = Executors.newCachedThreadPool();
-	private Future<?> policyAcceptorThread = null;
+	private StaticResource flashFile = null;
+	private FlashPolicyServer flashPolicyServer = null;
 	private String flashPolicyServerHost = null;
 	private short flashPolicyServerPort = 843;
 	private String flashPolicyDomain = null;
 	private String flashPolicyPorts = null;
+	private long flashPolicyReadTimeout = FlashPolicyServer.READ_TIMEOUT_DEFAULT;
+	private int flashPolicyMaxConnections = FlashPolicyServer.MAX_CONNECTIONS_DEFAULT;
 
 
 	public FlashSocketTransport(int bufferSize, int maxIdleTime) {
@@ -75,6 +69,7 @@ public class FlashSocketTransport extends WebSocketTransport {
 
 	@Override
 	public void init(ServletConfig config) {
+		super.init(config);
 		flashPolicyServerHost = config.getInitParameter(FLASHPOLICY_SERVER_HOST_KEY);
 		flashPolicyDomain = config.getInitParameter(FLASHPOLICY_DOMAIN_KEY);
 		flashPolicyPorts = config.getInitParameter(FLASHPOLICY_PORTS_KEY);
@@ -82,6 +77,21 @@ public class FlashSocketTransport extends WebSocketTransport {
 		if (port != null) {
 			flashPolicyServerPort = Short.parseShort(port);
 		}
+		String str = config.getInitParameter(FLASHPOLICY_READ_TIMEOUT_KEY);
+		if (str != null) {
+			flashPolicyReadTimeout = Long.parseLong(str);
+		}
+		str = config.getInitParameter(FLASHPOLICY_MAX_CONNECTIONS_KEY);
+		if (str != null) {
+			flashPolicyMaxConnections = Integer.parseInt(str);
+		}
+		String maxAge = config.getInitParameter(STATIC_MAX_AGE_KEY);
+		try {
+			flashFile = StaticResource.load("com/glines/socketio/" + FLASHFILE_NAME, "application/x-shockwave-flash",
+					maxAge == null ? StaticResource.MAX_AGE_DEFAULT : Integer.parseInt(maxAge));
+		} catch (IOException e) {
+			Log.warn("Failed to load " + FLASHFILE_NAME, e);
+		}
 		if (flashPolicyServerHost != null && flashPolicyDomain != null && flashPolicyPorts != null) {
 			try {
 				startFlashPolicyServer();
@@ -94,6 +104,7 @@ public class FlashSocketTransport extends WebSocketTransport {
 	@Override
 	public void destroy() {
 		stopFlashPolicyServer();
+		super.destroy();
 	}
 
 	@Override
@@ -115,13 +126,14 @@ public class FlashSocketTransport extends WebSocketTransport {
     		if (!FLASHFILE_PATH.equals(path)) {
         		super.handle(request, response, inboundFactory, sessionFactory);
     		} else {
-				response.setContentType("application/x-shockwave-flash");
-				InputStream is = this.getClass().getClassLoader().getResourceAsStream("com/glines/socketio/" + FLASHFILE_NAME);
-				OutputStream os = response.getOutputStream();
-				try {
-					IO.copy(is, os);
-				} catch (IOException e) {
-					// TODO: Do we care?
+				if (flashFile != null) {
+					try {
+						flashFile.serve(request, response);
+					} catch (IOException e) {
+						// TODO: Do we care?
+					}
+				} else {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
 				}
     		}
     	} else {
@@ -133,80 +145,21 @@ public class FlashSocketTransport extends WebSocketTransport {
 	 * Starts this server, binding to the previously passed SocketAddress.
 	 */
 	public void startFlashPolicyServer() throws IOException {
-		final String POLICY_FILE_REQUEST = "<policy-file-request/>";
-		flashPolicyServer = ServerSocketChannel.open();
-		flashPolicyServer.socket().setReuseAddress(true);
-		flashPolicyServer.socket().bind(new InetSocketAddress(flashPolicyServerHost, flashPolicyServerPort));
-		flashPolicyServer.configureBlocking(true);
-
-		// Spawn a new server acceptor thread, which must accept incoming
-		// connections indefinitely - until a ClosedChannelException is thrown.
-		policyAcceptorThread = executor.submit(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					while (true) {
-						final SocketChannel serverSocket = flashPolicyServer.accept();
-						executor.submit(new Runnable() {
-							@Override
-							public void run() {
-								try {
-									serverSocket.configureBlocking(true);
-									Socket s = serverSocket.socket();
-									StringBuilder request = new StringBuilder();
-									InputStreamReader in = new InputStreamReader(s.getInputStream());
-									int c;
-									while ((c = in.read()) != 0 && request.length() <= POLICY_FILE_REQUEST.length()) {
-										request.append((char)c);
-									}
-									if (request.toString().equalsIgnoreCase(POLICY_FILE_REQUEST) ||
-										flashPolicyDomain != null && flashPolicyPorts != null) {
-										PrintWriter out = new PrintWriter(s.getOutputStream());
-										out.println("<cross-domain-policy><allow-access-from domain=\""+flashPolicyDomain+"\" to-ports=\""+flashPolicyPorts+"\" /></cross-domain-policy>");
-										out.write(0);
-										out.flush();
-									}
-									serverSocket.close();
-								} catch (IOException e) {
-									// TODO: Add loging
-								} finally {
-									try {
-										serverSocket.close();
-									} catch (IOException e) {
-										// Ignore error on close.
-									}
-								}
-							}
-						});
-					}
-				} catch (ClosedChannelException e) {
-					return;
-				} catch (IOException e) {
-					throw new IllegalStateException("Server should not throw a misunderstood IOException", e);
-				}
-			}
-		});
+		flashPolicyServer = new FlashPolicyServer(flashPolicyServerHost, flashPolicyServerPort,
+				flashPolicyDomain, flashPolicyPorts, flashPolicyReadTimeout, flashPolicyMaxConnections);
+		flashPolicyServer.start();
+	}
+
+	/**
+	 * @return The Flash policy server, or null if it wasn't started.
+	 */
+	public FlashPolicyServer getFlashPolicyServer() {
+		return flashPolicyServer;
 	}
 
 	private void stopFlashPolicyServer() {
 		if (flashPolicyServer != null) {
-			try {
-				flashPolicyServer.close();
-			} catch (IOException e) {
-				// Ignore
-			}
-		}
-		if (policyAcceptorThread != null) {
-			try {
-				policyAcceptorThread.get();
-			} catch (InterruptedException e) {
-				throw new IllegalStateException();
-			} catch (ExecutionException e) {
-				throw new IllegalStateException("Server thread threw an exception", e.getCause());
-			}
-			if (!policyAcceptorThread.isDone()) {
-				throw new IllegalStateException("Server acceptor thread has not stopped.");
-			}
+			flashPolicyServer.stop();
 		}
 	}
 
@@ -78,6 +78,11 @@ public class HTMLFileTransport extends XHRTransport {
 		super(bufferSize, maxIdleTime);
 	}
 
+	@Override
+	protected boolean isStreaming() {
+		return true;
+	}
+
 	@Override
 	public String getName() {
 		return TRANSPORT_NAME;
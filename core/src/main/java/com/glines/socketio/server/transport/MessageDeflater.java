@@ -0,0 +1,151 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.lang.reflect.Method;
+import java.util.zip.Deflater;
+
+import org.eclipse.jetty.util.B64Code;
+
+import com.glines.socketio.server.CompressionStats;
+
+/**
+ * Compresses the messages of one connection with raw deflate (RFC 1951), the same way as the
+ * WebSocket permessage-deflate extension (RFC 7692): with context takeover, every message is
+ * ended by a sync flush whose trailing 00 00 FF FF is removed, and later messages may refer to
+ * the data of earlier ones. Without it, every message is a complete deflate stream.
+ * <p>
+ * Context takeover needs {@code Deflater.SYNC_FLUSH}, which was added in Java 7. It is looked
+ * up reflectively so the core still runs on Java 6, where every message is compressed
+ * independently.
+ * <p>
+ * Messages must be compressed in the order they are sent.
+ */
+final class MessageDeflater {
+	private static final int SYNC_FLUSH = 2;
+	private static final Method DEFLATE_WITH_FLUSH = findDeflateWithFlush();
+
+	private final Deflater deflater;
+	private final boolean contextTakeover;
+	private final CompressionStats stats;
+	private byte[] buffer = new byte[1024];
+	private boolean ended = false;
+
+	private static Method findDeflateWithFlush() {
+		try {
+			return Deflater.class.getMethod("deflate", byte[].class, int.class, int.class, int.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	static boolean isContextTakeoverSupported() {
+		return DEFLATE_WITH_FLUSH != null;
+	}
+
+	MessageDeflater(int level, boolean contextTakeover, CompressionStats stats) {
+		this.deflater = new Deflater(level, true);
+		this.contextTakeover = contextTakeover && isContextTakeoverSupported();
+		this.stats = stats;
+	}
+
+	/**
+	 * @param prefix Character written before the compressed message.
+	 * @return The prefix followed by the compressed message encoded in base64, so it can be
+	 * sent in a text frame, or null if the deflater was ended.
+	 */
+	synchronized byte[] compress(byte[] message, char prefix) {
+		if (ended) {
+			return null;
+		}
+		long start = CompressionStats.currentTime();
+		deflater.setInput(message);
+		int length = 0;
+		if (contextTakeover) {
+			while (true) {
+				length += syncFlush(deflater, buffer, length, buffer.length - length);
+				if (length < buffer.length) {
+					break;
+				}
+				grow();
+			}
+			// Every sync flush ends with an empty stored block, which the receiver adds back.
+			if (length >= 4 && buffer[length - 4] == 0 && buffer[length - 3] == 0 &&
+					buffer[length - 2] == (byte)0xFF && buffer[length - 1] == (byte)0xFF) {
+				length -= 4;
+			}
+		} else {
+			deflater.finish();
+			while (!deflater.finished()) {
+				if (length == buffer.length) {
+					grow();
+				}
+				length += deflater.deflate(buffer, length, buffer.length - length);
+			}
+			deflater.reset();
+		}
+		char[] encoded = B64Code.encode(subArray(buffer, length));
+		byte[] out = new byte[encoded.length + 1];
+		out[0] = (byte)prefix;
+		for (int i = 0; i < encoded.length; i++) {
+			out[i + 1] = (byte)encoded[i];
+		}
+		stats.onCompressed(message.length, length, CompressionStats.currentTime() - start);
+		return out;
+	}
+
+	/**
+	 * Deflate with {@code Deflater.SYNC_FLUSH}. Only call it if
+	 * {@link #isContextTakeoverSupported()} returns true.
+	 * @return The number of compressed bytes written to b.
+	 */
+	static int syncFlush(Deflater deflater, byte[] b, int off, int len) {
+		try {
+			return (Integer)DEFLATE_WITH_FLUSH.invoke(deflater, b, off, len, SYNC_FLUSH);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void grow() {
+		byte[] b = new byte[buffer.length * 2];
+		System.arraycopy(buffer, 0, b, 0, buffer.length);
+		buffer = b;
+	}
+
+	private static byte[] subArray(byte[] b, int length) {
+		byte[] sub = new byte[length];
+		System.arraycopy(b, 0, sub, 0, length);
+		return sub;
+	}
+
+	/**
+	 * Release the native memory of the deflater.
+	 */
+	synchronized void end() {
+		if (!ended) {
+			ended = true;
+			deflater.end();
+		}
+	}
+}
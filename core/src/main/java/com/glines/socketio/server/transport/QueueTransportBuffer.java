@@ -0,0 +1,147 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.glines.socketio.server.OutboundBufferStats;
+
+/**
+ * {@link TransportBuffer} built on a {@link LinkedBlockingQueue}, with a {@link Semaphore}
+ * counting the bytes in the buffer.
+ */
+public class QueueTransportBuffer extends TransportBuffer {
+	private final Semaphore inputSemaphore;
+	private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+
+	public QueueTransportBuffer(int bufferSize) {
+		this(bufferSize, null);
+	}
+
+	public QueueTransportBuffer(int bufferSize, OutboundBufferStats stats) {
+		super(bufferSize, stats);
+		this.inputSemaphore = new Semaphore(bufferSize);
+	}
+
+	@Override
+	public int getAvailableBytes() {
+		return bufferSize - inputSemaphore.availablePermits();
+	}
+
+	@Override
+	public int getFreeBytes() {
+		return inputSemaphore.availablePermits();
+	}
+
+	/**
+	 * Dropped messages keep their place in the queue but no longer hold any bytes.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return queue.isEmpty() || inputSemaphore.availablePermits() == bufferSize;
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> sink) {
+		List<Entry> list = new ArrayList<Entry>();
+		queue.drainTo(list);
+
+		long released = 0;
+		int count = 0;
+		for (Entry entry: list) {
+			String msg = take(entry);
+			if (msg != null) {
+				int size = encodedSize(msg);
+				inputSemaphore.release(size);
+				released += size;
+				sink.add(msg);
+				count++;
+			}
+		}
+		onReleased(released, count);
+		return count;
+	}
+
+	@Override
+	public String getMessage(long timeout) {
+		try {
+			long deadline = System.currentTimeMillis() + timeout;
+			long remaining = timeout;
+			do {
+				Entry entry = queue.poll(remaining, TimeUnit.MILLISECONDS);
+				if (entry == null) {
+					return null;
+				}
+				String msg = take(entry);
+				if (msg != null) {
+					int size = encodedSize(msg);
+					inputSemaphore.release(size);
+					onReleased(size, 1);
+					return msg;
+				}
+				remaining = deadline - System.currentTimeMillis();
+			} while (true);
+		} catch (InterruptedException e) {
+			return null;
+		}
+	}
+
+	@Override
+	protected boolean offer(Entry entry, int size, long timeout) {
+		try {
+			if (!inputSemaphore.tryAcquire(size, timeout, TimeUnit.MILLISECONDS)) {
+				return false;
+			}
+			if (!tryBuffer(size)) {
+				inputSemaphore.release(size);
+				return false;
+			}
+			queue.offer(entry);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
+	}
+
+	@Override
+	protected boolean reserve(int size) {
+		return inputSemaphore.tryAcquire(size);
+	}
+
+	@Override
+	protected void release(int size) {
+		inputSemaphore.release(size);
+	}
+
+	@Override
+	protected Iterator<Entry> entries() {
+		return queue.iterator();
+	}
+}
@@ -0,0 +1,362 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.glines.socketio.server.OutboundBufferStats;
+
+/**
+ * {@link TransportBuffer} built on a bounded multi-producer/single-consumer array ring.
+ * <p>
+ * Producers reserve bytes and claim a slot with a CAS each, and the consumer frees a whole
+ * batch of slots and bytes at once, so neither side takes a lock while the buffer is neither
+ * full nor empty. A lock is only used to park producers waiting for space and the
+ * consumer waiting for a message.
+ * <p>
+ * The capacity is bufferSize bytes, as with {@link QueueTransportBuffer}. The number of slots
+ * is a secondary bound; by default it is large enough that it is only reached by floods of
+ * very small frames.
+ */
+public class RingTransportBuffer extends TransportBuffer {
+	/**
+	 * Default number of bytes per slot used to size the ring from the buffer size.
+	 */
+	private static final int BYTES_PER_SLOT = 16;
+	private static final int MIN_SLOTS = 16;
+	private static final int MAX_SLOTS = 1024;
+
+	/**
+	 * AtomicLong padded to a cache line so that the producer and consumer counters don't
+	 * share one.
+	 */
+	@SuppressWarnings("serial")
+	static final class PaddedAtomicLong extends AtomicLong {
+		public volatile long p1, p2, p3, p4, p5, p6, p7 = 7L;
+
+		PaddedAtomicLong(long initialValue) {
+			super(initialValue);
+		}
+
+		long sumPaddingToPreventOptimisation() {
+			return p1 + p2 + p3 + p4 + p5 + p6 + p7;
+		}
+	}
+
+	private final AtomicReferenceArray<Entry> slots;
+	private final int mask;
+	private final PaddedAtomicLong producerIndex = new PaddedAtomicLong(0);
+	private final PaddedAtomicLong consumerIndex = new PaddedAtomicLong(0);
+	private final PaddedAtomicLong usedBytes = new PaddedAtomicLong(0);
+
+	private final Object consumerLock = new Object();
+	private final ReentrantLock waitLock = new ReentrantLock();
+	private final Condition notFull = waitLock.newCondition();
+	private final Condition notEmpty = waitLock.newCondition();
+	private final AtomicInteger waitingProducers = new AtomicInteger(0);
+	private volatile boolean consumerWaiting = false;
+
+	public RingTransportBuffer(int bufferSize) {
+		this(bufferSize, null);
+	}
+
+	public RingTransportBuffer(int bufferSize, OutboundBufferStats stats) {
+		this(bufferSize, Math.min(Math.max(bufferSize / BYTES_PER_SLOT, MIN_SLOTS), MAX_SLOTS), stats);
+	}
+
+	/**
+	 * @param bufferSize Capacity in bytes.
+	 * @param slots Maximum number of messages. It will be rounded up to a power of two.
+	 * @param stats Stats to update as messages are added and removed, or null.
+	 */
+	public RingTransportBuffer(int bufferSize, int slots, OutboundBufferStats stats) {
+		super(bufferSize, stats);
+		if (slots <= 0 || slots > (1 << 30)) {
+			throw new IllegalArgumentException("slots must be between 1 and 2^30: " + slots);
+		}
+		int size = 1;
+		while (size < slots) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<Entry>(size);
+		this.mask = size - 1;
+	}
+
+	public int getSlots() {
+		return mask + 1;
+	}
+
+	@Override
+	public int getAvailableBytes() {
+		return (int)usedBytes.get();
+	}
+
+	@Override
+	public int getFreeBytes() {
+		return bufferSize - (int)usedBytes.get();
+	}
+
+	/**
+	 * Dropped messages keep their slot until the consumer reaches it, but no longer hold
+	 * any bytes.
+	 */
+	@Override
+	public boolean isEmpty() {
+		return consumerIndex.get() >= producerIndex.get() || usedBytes.get() == 0;
+	}
+
+	@Override
+	public void clear() {
+		synchronized (consumerLock) {
+			drain(null);
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super String> sink) {
+		synchronized (consumerLock) {
+			return drain(sink);
+		}
+	}
+
+	@Override
+	public String getMessage(long timeout) {
+		synchronized (consumerLock) {
+			String msg = poll();
+			if (msg != null || timeout <= 0) {
+				return msg;
+			}
+			long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+			waitLock.lock();
+			try {
+				consumerWaiting = true;
+				while ((msg = poll()) == null && remaining > 0) {
+					remaining = notEmpty.awaitNanos(remaining);
+				}
+				return msg;
+			} catch (InterruptedException e) {
+				return null;
+			} finally {
+				consumerWaiting = false;
+				waitLock.unlock();
+			}
+		}
+	}
+
+	@Override
+	protected boolean offer(Entry entry, int size, long timeout) {
+		if (tryOffer(entry, size)) {
+			return true;
+		}
+		if (timeout <= 0) {
+			return false;
+		}
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+		waitingProducers.incrementAndGet();
+		waitLock.lock();
+		try {
+			while (!tryOffer(entry, size)) {
+				if (remaining <= 0) {
+					return false;
+				}
+				remaining = notFull.awaitNanos(remaining);
+			}
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		} finally {
+			waitLock.unlock();
+			waitingProducers.decrementAndGet();
+		}
+	}
+
+	private boolean tryOffer(Entry entry, int length) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + length > bufferSize) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + length));
+		if (!tryBuffer(length)) {
+			usedBytes.addAndGet(-length);
+			return false;
+		}
+
+		long index;
+		do {
+			index = producerIndex.get();
+			if (index - consumerIndex.get() > mask) {
+				usedBytes.addAndGet(-length);
+				onReleased(length, 1);
+				return false;
+			}
+		} while (!producerIndex.compareAndSet(index, index + 1));
+
+		slots.lazySet((int)index & mask, entry);
+
+		if (consumerWaiting) {
+			waitLock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected boolean reserve(int size) {
+		long used;
+		do {
+			used = usedBytes.get();
+			if (used + size > bufferSize) {
+				return false;
+			}
+		} while (!usedBytes.compareAndSet(used, used + size));
+		return true;
+	}
+
+	@Override
+	protected void release(int size) {
+		usedBytes.addAndGet(-size);
+		signalProducers();
+	}
+
+	/**
+	 * The entries between the consumer and producer indexes. A slot that the consumer has
+	 * freed in the meantime is skipped, and one that a producer has reused yields a newer entry.
+	 */
+	@Override
+	protected Iterator<Entry> entries() {
+		return new Iterator<Entry>() {
+			private long index = consumerIndex.get();
+			private final long end = producerIndex.get();
+			private Entry next = null;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && index < end) {
+					next = slots.get((int)index++ & mask);
+				}
+				return next != null;
+			}
+
+			@Override
+			public Entry next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Entry entry = next;
+				next = null;
+				return entry;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Must be called while holding consumerLock.
+	 */
+	private String poll() {
+		long start = consumerIndex.get();
+		long end = producerIndex.get();
+		String msg = null;
+		long index = start;
+		while (msg == null && index < end) {
+			msg = take(take(index++));
+		}
+		if (index > start) {
+			consumerIndex.lazySet(index);
+			if (msg != null) {
+				int size = encodedSize(msg);
+				usedBytes.addAndGet(-size);
+				onReleased(size, 1);
+			}
+			signalProducers();
+		}
+		return msg;
+	}
+
+	/**
+	 * Must be called while holding consumerLock.
+	 */
+	private int drain(Collection<? super String> sink) {
+		long start = consumerIndex.get();
+		long end = producerIndex.get();
+		long released = 0;
+		int count = 0;
+		for (long index = start; index < end; index++) {
+			String msg = take(take(index));
+			if (msg != null) {
+				released += encodedSize(msg);
+				count++;
+				if (sink != null) {
+					sink.add(msg);
+				}
+			}
+		}
+		if (end > start) {
+			consumerIndex.lazySet(end);
+			usedBytes.addAndGet(-released);
+			onReleased(released, count);
+			signalProducers();
+		}
+		return count;
+	}
+
+	private Entry take(long index) {
+		int slot = (int)index & mask;
+		Entry entry;
+		// The producer may have claimed the slot without having stored the entry yet.
+		while ((entry = slots.get(slot)) == null) {
+			Thread.yield();
+		}
+		slots.lazySet(slot, null);
+		return entry;
+	}
+
+	private void signalProducers() {
+		if (waitingProducers.get() > 0) {
+			waitLock.lock();
+			try {
+				notFull.signalAll();
+			} finally {
+				waitLock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.IO;
+
+/**
+ * A class path resource that is loaded once, and served from memory with a strong ETag,
+ * Last-Modified and Cache-Control headers. Conditional requests that match are answered
+ * with 304 Not Modified. A gzip encoded copy is computed when the resource is loaded, and
+ * served to the clients that accept it if it is smaller.
+ */
+public final class StaticResource {
+	public static final int MAX_AGE_DEFAULT = 24*60*60;
+	/**
+	 * The gzip encoded copy is only kept if it saves at least 1/8 of the size.
+	 */
+	private static final int MIN_GZIP_SAVING = 8;
+
+	private final String contentType;
+	private final byte[] data;
+	private final byte[] gzipped;
+	private final String etag;
+	private final String gzipEtag;
+	private final long lastModified;
+	private final String cacheControl;
+
+	private StaticResource(String contentType, byte[] data, long lastModified, int maxAge) throws IOException {
+		this.contentType = contentType;
+		this.data = data;
+		this.lastModified = lastModified / 1000 * 1000;
+		this.cacheControl = "public, max-age=" + maxAge;
+		byte[] gz = gzip(data);
+		this.gzipped = gz.length < data.length - data.length / MIN_GZIP_SAVING ? gz : null;
+		String hash = digest(data);
+		this.etag = "\"" + hash + "\"";
+		this.gzipEtag = "\"" + hash + "-gzip\"";
+	}
+
+	/**
+	 * Load a resource with the class loader of this class.
+	 * @param name The resource name, e.g. com/glines/socketio/socket.io.js
+	 * @param maxAge The max-age of the Cache-Control header, in seconds.
+	 * @return The resource, or null if it can't be found.
+	 */
+	public static StaticResource load(String name, String contentType, int maxAge) throws IOException {
+		URL url = StaticResource.class.getClassLoader().getResource(name);
+		if (url == null) {
+			return null;
+		}
+		long lastModified = url.openConnection().getLastModified();
+		if (lastModified <= 0) {
+			lastModified = System.currentTimeMillis();
+		}
+		InputStream is = url.openStream();
+		try {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			IO.copy(is, os);
+			return new StaticResource(contentType, os.toByteArray(), lastModified, maxAge);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+		GZIPOutputStream os = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		os.write(data);
+		os.close();
+		return bytes.toByteArray();
+	}
+
+	private static String digest(byte[] data) {
+		try {
+			byte[] hash = MessageDigest.getInstance("MD5").digest(data);
+			StringBuilder str = new StringBuilder(hash.length * 2);
+			for (byte b: hash) {
+				str.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return str.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Answer a GET request for this resource.
+	 */
+	public void serve(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		boolean gzip = gzipped != null &&
+			CompressingResponse.GZIP.equals(CompressingResponse.negotiate(request.getHeader("Accept-Encoding")));
+		String tag = gzip ? gzipEtag : etag;
+		response.setHeader("ETag", tag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Cache-Control", cacheControl);
+		if (gzipped != null) {
+			response.setHeader("Vary", "Accept-Encoding");
+		}
+		if (isNotModified(request, tag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		byte[] body = gzip ? gzipped : data;
+		response.setContentType(contentType);
+		if (gzip) {
+			response.setHeader("Content-Encoding", CompressingResponse.GZIP);
+		}
+		response.setContentLength(body.length);
+		response.getOutputStream().write(body);
+	}
+
+	private boolean isNotModified(HttpServletRequest request, String tag) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String candidate: ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.startsWith("W/")) {
+					candidate = candidate.substring(2);
+				}
+				if (candidate.equals(tag) || candidate.equals("*")) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return ifModifiedSince >= lastModified;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public String getETag() {
+		return etag;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return The size of the resource in bytes.
+	 */
+	public int getLength() {
+		return data.length;
+	}
+
+	/**
+	 * @return The size of the gzip encoded copy in bytes, or -1 if the resource isn't served
+	 * compressed.
+	 */
+	public int getGzipLength() {
+		return gzipped == null ? -1 : gzipped.length;
+	}
+}
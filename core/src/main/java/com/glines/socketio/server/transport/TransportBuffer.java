@@ -23,14 +23,25 @@
 package com.glines.socketio.server.transport;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
-public class TransportBuffer {
+import com.glines.socketio.server.OutboundBufferStats;
+import com.glines.socketio.server.OverflowPolicy;
+import com.glines.socketio.server.SocketIOFrame;
+
+/**
+ * Outbound message buffer of a session. The buffer holds at most bufferSize bytes of
+ * encoded frames, measured as their UTF-8 encoded size (see {@link #encodedSize(String)}).
+ * <p>
+ * Any number of threads may put messages. The methods that remove messages are only meant
+ * to be called by the thread that writes to the connection.
+ */
+public abstract class TransportBuffer {
 	public interface BufferListener {
 		/**
 		 * @param message
@@ -39,78 +50,188 @@ public class TransportBuffer {
 		boolean onMessage(String message);
 		boolean onMessages(List<String> messages);
 	}
-	
-	private final int bufferSize;
-	private final Semaphore inputSemaphore;
-	private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+	/**
+	 * A buffered message. The message of a data frame can be replaced by a newer one with the
+	 * same conflation key, or cleared when it is dropped, while it waits in the buffer.
+	 */
+	protected static final class Entry {
+		private static final AtomicReferenceFieldUpdater<Entry, String> MESSAGE =
+			AtomicReferenceFieldUpdater.newUpdater(Entry.class, String.class, "message");
+
+		private final Object key;
+		private final boolean data;
+		private volatile String message;
+
+		private Entry(String message, Object key) {
+			this.message = message;
+			this.key = key;
+			this.data = isDataFrame(message);
+		}
+
+		private boolean replace(String expect, String update) {
+			return MESSAGE.compareAndSet(this, expect, update);
+		}
+	}
+
+	private static final String DATA_FRAME_PREFIX =
+		"" + SocketIOFrame.SEPERATOR_CHAR + Integer.toHexString(SocketIOFrame.FrameType.DATA.value());
+
+	protected final int bufferSize;
+	private final OutboundBufferStats stats;
 	private AtomicReference<BufferListener> listenerRef = new AtomicReference<BufferListener>();
-	
-	public TransportBuffer(int bufferSize) {
+	// The most recent entry of each conflation key, created on first use.
+	private volatile ConcurrentHashMap<Object, Entry> keys = null;
+
+	protected TransportBuffer(int bufferSize) {
+		this(bufferSize, null);
+	}
+
+	/**
+	 * @param bufferSize Capacity in bytes.
+	 * @param stats Stats to update as messages are added and removed, or null.
+	 */
+	protected TransportBuffer(int bufferSize, OutboundBufferStats stats) {
 		this.bufferSize = bufferSize;
-		this.inputSemaphore = new Semaphore(bufferSize);
+		this.stats = stats;
+	}
+
+	/**
+	 * @return The number of bytes needed to encode message in UTF-8.
+	 */
+	public static int encodedSize(String message) {
+		int length = message.length();
+		int size = length;
+		for (int i = 0; i < length; i++) {
+			char c = message.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800 || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)) {
+					// Two byte sequence, or one half of a four byte surrogate pair.
+					size += 1;
+				} else {
+					size += 2;
+				}
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Record that a message of the given size is being added, provided the memory budget
+	 * of the session allows it.
+	 * @return false if the message must be refused.
+	 */
+	protected boolean tryBuffer(int size) {
+		return stats == null || stats.tryBuffer(size);
+	}
+
+	protected void onReleased(long size, int messages) {
+		if (stats != null && messages > 0) {
+			stats.onReleased(size, messages);
+		}
+	}
+
+	protected void onDropped(int messages) {
+		if (stats != null && messages > 0) {
+			stats.onDropped(messages);
+		}
+	}
+
+	protected void onConflated() {
+		if (stats != null) {
+			stats.onConflated();
+		}
 	}
 
 	public void setListener(BufferListener listener) {
 		this.listenerRef.set(listener);
 	}
-	
+
 	public int getBufferSize() {
 		return bufferSize;
 	}
 
-	public int getAvailableBytes() {
-		return bufferSize - inputSemaphore.availablePermits();
-	}
+	public abstract int getAvailableBytes();
 
-	public int getFreeBytes() {
-		return inputSemaphore.availablePermits();
-	}
+	public abstract int getFreeBytes();
 
-	public boolean isEmpty() {
-		return queue.isEmpty();
-	}
+	public abstract boolean isEmpty();
 
-	public void clear() {
-		List<String> list = new ArrayList<String>();
-		queue.drainTo(list);
+	/**
+	 * Remove all messages currently in the buffer and add them to sink.
+	 * @return The number of messages transferred.
+	 */
+	public abstract int drainTo(Collection<? super String> sink);
+
+	/**
+	 * Wait up to timeout milliseconds for a message.
+	 * @return The message or null if none arrived in time.
+	 */
+	public abstract String getMessage(long timeout);
 
-		for (String str: list) {
-			inputSemaphore.release(str.length());
+	/**
+	 * Add an entry of the given size, waiting up to timeout milliseconds for space to become
+	 * available.
+	 * @return false if the entry could not be added in time.
+	 */
+	protected abstract boolean offer(Entry entry, int size, long timeout);
+
+	/**
+	 * Reserve size bytes of capacity, without waiting, for a message that grows in place.
+	 * @return false if there is not enough free space.
+	 */
+	protected abstract boolean reserve(int size);
+
+	/**
+	 * Release size bytes of capacity of a message that was dropped or shrunk in place.
+	 */
+	protected abstract void release(int size);
+
+	/**
+	 * @return The entries in the buffer, oldest first. The iterator must tolerate concurrent
+	 * additions and removals.
+	 */
+	protected abstract Iterator<Entry> entries();
+
+	/**
+	 * Take the message of an entry removed by the consumer.
+	 * @return The message, or null if it was dropped while in the buffer.
+	 */
+	protected final String take(Entry entry) {
+		String message = Entry.MESSAGE.getAndSet(entry, null);
+		if (message != null && entry.key != null) {
+			keys.remove(entry.key, entry);
 		}
+		return message;
+	}
+
+	public void clear() {
+		drainTo(new ArrayList<String>());
 	}
-	
+
 	public List<String> drainMessages() {
 		List<String> list = new ArrayList<String>();
-		queue.drainTo(list);
-
-		for (String str: list) {
-			inputSemaphore.release(str.length());
-		}
-		
+		drainTo(list);
 		return list;
 	}
-	
-	public String getMessage(long timeout) {
-		try {
-			String msg = queue.poll(timeout, TimeUnit.MILLISECONDS);
-			if (msg != null) {
-				inputSemaphore.release(msg.length());
-			}
-			return msg;
-		} catch (InterruptedException e) {
-			return null;
-		}
-	}
-	
+
 	public boolean putMessage(String message, long timeout) {
+		return putMessage(message, null, timeout);
+	}
+
+	/**
+	 * @param key The conflation key of a data frame, or null. It must be given for every data
+	 * frame of a session whose {@link OverflowPolicy} is {@link OverflowPolicy.Type#CONFLATE},
+	 * so that later messages can replace it.
+	 */
+	public boolean putMessage(String message, Object key, long timeout) {
 		BufferListener listener = listenerRef.get();
 		if (listener != null) {
 			try {
-				if (queue.size() == 0) {
+				if (isEmpty()) {
 					return listener.onMessage(message);
 				} else {
-					ArrayList<String> messages = new ArrayList<String>(queue.size()+1);
-					queue.drainTo(messages);
+					List<String> messages = drainMessages();
 					messages.add(message);
 					return listener.onMessages(messages);
 				}
@@ -118,15 +239,125 @@ public class TransportBuffer {
 				return false;
 			}
 		} else {
-			try {
-				if (!inputSemaphore.tryAcquire(message.length(), timeout, TimeUnit.MILLISECONDS)) {
-					return false;
+			return offer(message, key, timeout);
+		}
+	}
+
+	/**
+	 * Add an encoded data frame without waiting. If the buffer is full, room is made for it
+	 * as specified by policy: a message with the same key is replaced in place, or the
+	 * oldest data frames are dropped until it fits. Only the entries that are replaced or
+	 * dropped are touched, and they can be removed concurrently by the consumer.
+	 * @param key The conflation key of the message, or null.
+	 * @return false if the message was dropped, or if policy is {@link OverflowPolicy.Type#BLOCK}
+	 * and the buffer is full.
+	 */
+	public boolean putMessage(String message, Object key, OverflowPolicy policy) {
+		if (offer(message, key, 0)) {
+			return true;
+		}
+		OverflowPolicy.Type type = policy.getType();
+		if (type == OverflowPolicy.Type.BLOCK) {
+			return false;
+		}
+		int size = encodedSize(message);
+		if (type == OverflowPolicy.Type.DROP_NEWEST || size > bufferSize) {
+			onDropped(1);
+			return false;
+		}
+		if (type == OverflowPolicy.Type.CONFLATE && key != null && conflate(message, size, key)) {
+			onConflated();
+			return true;
+		}
+
+		for (Iterator<Entry> it = entries(); it.hasNext();) {
+			Entry entry = it.next();
+			String msg = entry.message;
+			if (entry.data && msg != null && entry.replace(msg, null)) {
+				if (entry.key != null) {
+					keys.remove(entry.key, entry);
+				}
+				int dropped = encodedSize(msg);
+				release(dropped);
+				onReleased(dropped, 1);
+				onDropped(1);
+				if (getFreeBytes() >= size && offer(message, key, 0)) {
+					return true;
 				}
-				queue.offer(message);
-				return true;
-			} catch (InterruptedException e) {
-				return false;
 			}
 		}
+		onDropped(1);
+		return false;
+	}
+
+	private boolean offer(String message, Object key, long timeout) {
+		Entry entry = new Entry(message, key);
+		Entry previous = null;
+		if (key != null) {
+			previous = getKeys().put(key, entry);
+		}
+		if (offer(entry, encodedSize(message), timeout)) {
+			return true;
+		}
+		if (key != null) {
+			if (previous != null && previous.message != null) {
+				keys.replace(key, entry, previous);
+			} else {
+				keys.remove(key, entry);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Replace the message of the most recent entry with the same key.
+	 * @return false if there is none, or if there is no room for the new message.
+	 */
+	private boolean conflate(String message, int size, Object key) {
+		Entry entry = getKeys().get(key);
+		String old = entry != null ? entry.message : null;
+		if (old == null) {
+			return false;
+		}
+		int oldSize = encodedSize(old);
+		if (size > oldSize && !reserve(size - oldSize)) {
+			return false;
+		}
+		if (!tryBuffer(size)) {
+			if (size > oldSize) {
+				release(size - oldSize);
+			}
+			return false;
+		}
+		if (entry.replace(old, message)) {
+			if (size < oldSize) {
+				release(oldSize - size);
+			}
+			onReleased(oldSize, 1);
+			return true;
+		}
+		// The consumer took the entry first.
+		if (size > oldSize) {
+			release(size - oldSize);
+		}
+		onReleased(size, 1);
+		return false;
+	}
+
+	private ConcurrentHashMap<Object, Entry> getKeys() {
+		ConcurrentHashMap<Object, Entry> map = keys;
+		if (map == null) {
+			synchronized (this) {
+				if (keys == null) {
+					keys = new ConcurrentHashMap<Object, Entry>(16, 0.75f, 1);
+				}
+				map = keys;
+			}
+		}
+		return map;
+	}
+
+	private static boolean isDataFrame(String encoded) {
+		return encoded.startsWith(DATA_FRAME_PREFIX);
 	}
 }
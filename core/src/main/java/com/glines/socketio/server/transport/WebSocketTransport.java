@@ -24,8 +24,18 @@ package com.glines.socketio.server.transport;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -36,25 +46,149 @@ import org.eclipse.jetty.websocket.WebSocketFactory;
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.CompressionStats;
+import com.glines.socketio.server.OverflowPolicy;
+import com.glines.socketio.server.PreEncodedFrame;
+import com.glines.socketio.server.SendFuture;
+import com.glines.socketio.server.SendResult;
 import com.glines.socketio.server.SocketIOClosedException;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOFrameParser;
 import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.Transport;
 
 public class WebSocketTransport extends AbstractTransport {
 	public static final String TRANSPORT_NAME = "websocket";
 	public static final long CONNECTION_TIMEOUT = 10*1000;
+	/**
+	 * Request parameter of the upgrade request that asks for the session frames to be sent
+	 * as soon as the connection is established, instead of after the client's "OPEN" message.
+	 */
+	public static final String FAST_OPEN_PARAM = "fastopen";
+	/**
+	 * Request parameter of the upgrade request that tells the server the client can inflate
+	 * compressed messages.
+	 */
+	public static final String DEFLATE_PARAM = "deflate";
+	/**
+	 * First character of a compressed message. It is followed by the raw deflated message
+	 * encoded in base64.
+	 */
+	public static final char DEFLATE_PREFIX = 'z';
+	/**
+	 * Request parameter of the upgrade request that tells the server the client reassembles
+	 * messages sent as FRAGMENT frames.
+	 */
+	public static final String FRAGMENTS_PARAM = "fragments";
+	public static final String DEFLATE_KEY = "websocketDeflate";
+	public static final String DEFLATE_THRESHOLD_KEY = "deflateThreshold";
+	public static final String DEFLATE_LEVEL_KEY = "deflateLevel";
+	public static final String DEFLATE_CONTEXT_TAKEOVER_KEY = "deflateContextTakeover";
+	public static final int DEFLATE_THRESHOLD_DEFAULT = 256;
+	public static final String FRAGMENT_SIZE_KEY = "fragmentSize";
+	public static final int FRAGMENT_SIZE_DEFAULT = 64*1024;
+	public static final String SEND_THREADS_KEY = "websocketSendThreads";
+	public static final int SEND_THREADS_DEFAULT = 256;
+	public static final String SEND_QUEUE_SIZE_KEY = "websocketSendQueueSize";
+	public static final int SEND_QUEUE_SIZE_DEFAULT = 256*1024;
+	private static final String OPEN_MESSAGE = "OPEN";
 	private final WebSocketFactory wsFactory;
 	private final long maxIdleTime;
+	private volatile ExecutorService sendExecutor = null;
+	private boolean ownSendExecutor = false;
+	private int sendThreads = SEND_THREADS_DEFAULT;
+	private int sendQueueSize = SEND_QUEUE_SIZE_DEFAULT;
+	private boolean deflate = false;
+	private int deflateThreshold = DEFLATE_THRESHOLD_DEFAULT;
+	private int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+	private boolean deflateContextTakeover = true;
+	private int fragmentSize = FRAGMENT_SIZE_DEFAULT;
+	private final CompressionStats compressionStats = new CompressionStats();
+
+	/**
+	 * A queued message. The content of a queued data message is replaced in place when it is
+	 * conflated, under the lock of the send queue.
+	 */
+	private static final class QueuedSend {
+		private String text;
+		// The FRAGMENT frames of a large data message, written in place of text.
+		private String[] fragments;
+		private byte[] bytes;
+		private final boolean control;
+		private int size;
+		private final Object key;
+		private SendFuture future;
+
+		QueuedSend(String text, String[] fragments, byte[] bytes, boolean control,
+				int size, Object key, SendFuture future) {
+			this.text = text;
+			this.fragments = fragments;
+			this.bytes = bytes;
+			this.control = control;
+			this.size = size;
+			this.key = key;
+			this.future = future;
+		}
+
+		void replaceWith(QueuedSend send) {
+			text = send.text;
+			fragments = send.fragments;
+			bytes = send.bytes;
+			size = send.size;
+			future = send.future;
+		}
+	}
 
 	private class SessionWrapper implements WebSocket, SocketIOSession.SessionTransportHandler {
 		private final SocketIOSession session;
-		private Outbound outbound = null;
+		private volatile Outbound outbound = null;
+		// Data messages, guarded by their own lock. queuedBytes is bounded by sendQueueSize.
+		private final Queue<QueuedSend> sendQueue = new LinkedList<QueuedSend>();
+		private int queuedBytes = 0;
+		// The most recent queued message of each conflation key.
+		private final Map<Object, QueuedSend> keys = new HashMap<Object, QueuedSend>();
+		private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		// Frames other than DATA are written before the next queued message and between the
+		// fragments of a large message, so they are not held back by it.
+		private final Queue<QueuedSend> controlQueue = new ConcurrentLinkedQueue<QueuedSend>();
+		private final AtomicBoolean sending = new AtomicBoolean(false);
+		private final Runnable sendTask = new Runnable() {
+			@Override
+			public void run() {
+				flushQueue();
+			}
+		};
+		private final boolean fastOpen;
+		private final MessageDeflater deflater;
+		private final boolean fragments;
 		private boolean initiated = false;
+		// Reassembly of a fragmented WebSocket message.
+		private byte[] fragmentBuffer = null;
+		private int fragmentLength = 0;
+		private boolean fragmentDropped = false;
+		private final SocketIOFrameParser.FrameHandler frameHandler = new SocketIOFrameParser.FrameHandler() {
+			@Override
+			public void onFrame(SocketIOFrame.FrameType frameType, int messageType,
+					CharSequence data, int offset, int length) {
+				session.onMessage(new SocketIOFrame(frameType, messageType,
+						data.subSequence(offset, offset + length).toString()));
+			}
+		};
+		private final SocketIOFrameParser.ByteFrameHandler byteFrameHandler = new SocketIOFrameParser.ByteFrameHandler() {
+			@Override
+			public void onFrame(SocketIOFrame.FrameType frameType, int messageType,
+					ByteBuffer data, int offset, int length) {
+				session.onMessage(new SocketIOFrame(frameType, messageType,
+						SocketIOFrameParser.toString(data, offset, length)));
+			}
+		};
 
-		SessionWrapper(SocketIOSession session) {
+		SessionWrapper(SocketIOSession session, boolean fastOpen, boolean deflate, boolean fragments) {
 			this.session = session;
+			this.fastOpen = fastOpen;
+			this.fragments = fragments && fragmentSize > 1;
+			this.deflater = deflate ? new MessageDeflater(deflateLevel, deflateContextTakeover, compressionStats) : null;
 	        session.setHeartbeat(maxIdleTime/2);
 	        session.setTimeout(CONNECTION_TIMEOUT);
 		}
@@ -66,6 +200,24 @@ public class WebSocketTransport extends AbstractTransport {
 		@Override
 		public void onConnect(final Outbound outbound) {
 			this.outbound = outbound;
+			if (fastOpen) {
+				initiate();
+			}
+		}
+
+		/**
+		 * Send the session frames and connect the session.
+		 */
+		private void initiate() {
+			try {
+				outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()));
+				outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + session.getHeartbeat()));
+				initiated = true;
+				session.onConnect(this);
+			} catch (IOException e) {
+				outbound.disconnect();
+				session.onShutdown();
+			}
 		}
 
         /*
@@ -74,6 +226,10 @@ public class WebSocketTransport extends AbstractTransport {
            */
 		@Override
 		public void onDisconnect() {
+			if (deflater != null) {
+				deflater.end();
+			}
+			clearQueue();
 			session.onShutdown();
 		}
 		
@@ -85,26 +241,17 @@ public class WebSocketTransport extends AbstractTransport {
 		public void onMessage(byte frame, String message) {
 			session.startHeartbeatTimer();
 			if (!initiated) {
-				if ("OPEN".equals(message)) {
-					try {
-						outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId()));
-						outbound.sendMessage(SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + session.getHeartbeat()));
-						session.onConnect(this);
-						initiated = true;
-					} catch (IOException e) {
-						outbound.disconnect();
-						session.onShutdown();
-					}
+				if (OPEN_MESSAGE.equals(message)) {
+					initiate();
 				} else {
 					outbound.disconnect();
 					session.onShutdown();
 				}
+			} else if (fastOpen && OPEN_MESSAGE.equals(message)) {
+				// Clients also send it to servers that don't support fast open.
+				return;
 			} else {
-				List<SocketIOFrame> messages = SocketIOFrame.parse(message);
-				
-				for (SocketIOFrame msg: messages) {
-					session.onMessage(msg);
-				}
+				SocketIOFrameParser.parse(message, 0, message.length(), frameHandler);
 			}
 		}
 
@@ -114,6 +261,11 @@ public class WebSocketTransport extends AbstractTransport {
 		 */
 		@Override
 		public void onMessage(byte frame, byte[] data, int offset, int length) {
+			if (initiated) {
+				session.startHeartbeatTimer();
+				SocketIOFrameParser.parse(ByteBuffer.wrap(data, offset, length), byteFrameHandler);
+				return;
+			}
             try
             {
                 onMessage(frame,new String(data,offset,length,"UTF-8"));
@@ -124,10 +276,44 @@ public class WebSocketTransport extends AbstractTransport {
             }
 		}
 
-        @Override
-        public void onFragment(boolean more, byte opcode, byte[] data, int offset, int length) {
-            throw new UnsupportedOperationException();
-        }
+		/**
+		 * Messages may be received as fragments. They are reassembled up to the
+		 * session's maxMessageSize; the fragments of a larger message are discarded.
+		 */
+		@Override
+		public void onFragment(boolean more, byte opcode, byte[] data, int offset, int length) {
+			if (!fragmentDropped) {
+				if (fragmentLength + length > session.getMaxMessageSize()) {
+					Log.info("Session["+session.getSessionId()+"]: fragmented message larger than "
+							+ session.getMaxMessageSize() + " bytes discarded");
+					fragmentBuffer = null;
+					fragmentLength = 0;
+					fragmentDropped = true;
+				} else {
+					if (fragmentBuffer == null || fragmentLength + length > fragmentBuffer.length) {
+						int size = Math.max(fragmentLength + length, fragmentBuffer == null ? 1024 : fragmentBuffer.length * 2);
+						byte[] buffer = new byte[Math.min(size, session.getMaxMessageSize())];
+						if (fragmentBuffer != null) {
+							System.arraycopy(fragmentBuffer, 0, buffer, 0, fragmentLength);
+						}
+						fragmentBuffer = buffer;
+					}
+					System.arraycopy(data, offset, fragmentBuffer, fragmentLength, length);
+					fragmentLength += length;
+				}
+			}
+			if (!more) {
+				byte[] message = fragmentBuffer;
+				int messageLength = fragmentLength;
+				fragmentBuffer = null;
+				fragmentLength = 0;
+				fragmentDropped = false;
+				if (message == null) {
+					return;
+				}
+				onMessage(opcode, message, 0, messageLength);
+			}
+		}
 
 		/*
 		 * (non-Javadoc)
@@ -153,18 +339,371 @@ public class WebSocketTransport extends AbstractTransport {
 		public void sendMessage(SocketIOFrame frame) throws SocketIOException {
 			if (outbound.isOpen()) {
 				Log.debug("Session["+session.getSessionId()+"]: sendMessage: [" + frame.getFrameType() + "]: " + frame.getData());
+				if (frame.getFrameType() == SocketIOFrame.FrameType.DATA) {
+					waitFor(enqueue(frame.encode(), null, false,
+							overflowPolicy.getKey(frame.getMessageType(), frame.getData()), false));
+				} else {
+					waitFor(enqueue(frame.encode(), null, true, null, false));
+				}
+			} else {
+				throw new SocketIOClosedException();
+			}
+		}
+
+		@Override
+		public void sendEncoded(PreEncodedFrame frame) throws SocketIOException {
+			waitFor(send(frame, false));
+		}
+
+		@Override
+		public SendFuture sendEncodedAsync(PreEncodedFrame frame) {
+			return send(frame, true);
+		}
+
+		private SendFuture send(PreEncodedFrame frame, boolean async) {
+			if (outbound.isOpen() && (frame.getFrameType() != SocketIOFrame.FrameType.DATA ||
+					session.getConnectionState() == ConnectionState.CONNECTED)) {
+				Log.debug("Session["+session.getSessionId()+"]: sendEncoded: [" + frame.getFrameType() + "]: " + frame.getEncoded());
+				if (frame.getFrameType() == SocketIOFrame.FrameType.DATA) {
+					return enqueue(null, frame.getBytes(), false,
+							overflowPolicy.getKey(frame.getMessageType(), frame.getData()), async);
+				}
+				return enqueue(null, frame.getBytes(), true, null, async);
+			}
+			return SendFuture.completed(SendResult.CLOSED);
+		}
+
+		/**
+		 * Add a message to the send queue. If no other thread is writing, a blocking send
+		 * writes the queue itself while an asynchronous send hands it to the send executor.
+		 */
+		private SendFuture enqueue(String text, byte[] bytes, boolean control, Object key, boolean async) {
+			SendFuture future = new SendFuture();
+			int size = bytes != null ? bytes.length : TransportBuffer.encodedSize(text);
+			QueuedSend send = new QueuedSend(text, null, bytes, control, size, key, future);
+			if (control) {
+				session.getOutboundBufferStats().forceBuffer(size);
+				controlQueue.add(send);
+			} else if (!offer(send, async)) {
+				return future;
+			}
+			startSending(async);
+			return future;
+		}
+
+		/**
+		 * Queue a data message, split in FRAGMENT frames if it is larger than fragmentSize
+		 * and the client can reassemble it. The fragments are queued as one message, so they
+		 * can only be interleaved with control frames. The returned future completes when the
+		 * last fragment is written.
+		 */
+		private SendFuture enqueueData(int messageType, String message, boolean async) {
+			Object key = overflowPolicy.getKey(messageType, message);
+			if (!fragments || message.length() <= fragmentSize) {
+				return enqueue(SocketIOFrame.encode(SocketIOFrame.FrameType.DATA, messageType, message),
+						null, false, key, async);
+			}
+			String[] frames = SocketIOFrame.encodeFragments(messageType, message, fragmentSize);
+			int size = 0;
+			for (String frame: frames) {
+				size += TransportBuffer.encodedSize(frame);
+			}
+			SendFuture future = new SendFuture();
+			if (offer(new QueuedSend(null, frames, null, false, size, key, future), async)) {
+				startSending(async);
+			}
+			return future;
+		}
+
+		/**
+		 * Add a data message to the send queue. A message is always accepted by an empty
+		 * queue, otherwise it must fit in sendQueueSize. When the queue is full the overflow
+		 * policy applies; with {@link OverflowPolicy.Type#BLOCK} a blocking send waits up to
+		 * maxIdleTime for the queue to drain, and if it doesn't, or if the send is
+		 * asynchronous, the send times out and the session is disconnected.
+		 *
+		 * @return false if the message was not queued, its future is then completed.
+		 */
+		private boolean offer(QueuedSend send, boolean async) {
+			OverflowPolicy.Type type = overflowPolicy.getType();
+			synchronized (sendQueue) {
+				long deadline = 0;
+				while (true) {
+					if (tryAdd(send)) {
+						return true;
+					}
+					if (type == OverflowPolicy.Type.CONFLATE && send.key != null && conflate(send)) {
+						return true;
+					}
+					if (type == OverflowPolicy.Type.DROP_NEWEST ||
+							(type != OverflowPolicy.Type.BLOCK && !dropOldest())) {
+						session.getOutboundBufferStats().onDropped(1);
+						send.future.complete(SendResult.DROPPED);
+						return false;
+					}
+					if (type != OverflowPolicy.Type.BLOCK) {
+						continue;
+					}
+					Outbound out = outbound;
+					if (async || out == null || !out.isOpen()) {
+						break;
+					}
+					long now = System.currentTimeMillis();
+					if (deadline == 0) {
+						deadline = now + maxIdleTime;
+					} else if (now >= deadline) {
+						break;
+					}
+					try {
+						sendQueue.wait(deadline - now);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			Log.debug("Session["+session.getSessionId()+"]: send queue full");
+			send.future.complete(SendResult.TIMEOUT);
+			Outbound out = outbound;
+			if (out != null) {
+				session.onDisconnect(DisconnectReason.TIMEOUT);
+				out.disconnect();
+			}
+			return false;
+		}
+
+		/**
+		 * Must be called while holding the lock on sendQueue.
+		 */
+		private boolean tryAdd(QueuedSend send) {
+			if ((sendQueue.isEmpty() || queuedBytes + send.size <= sendQueueSize)
+					&& session.getOutboundBufferStats().tryBuffer(send.size)) {
+				sendQueue.add(send);
+				queuedBytes += send.size;
+				if (send.key != null) {
+					keys.put(send.key, send);
+				}
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Replace the content of the most recent queued message with the same key. Its
+		 * future completes with DROPPED. Must be called while holding the lock on sendQueue.
+		 * @return false if there is none, or the queue is still full.
+		 */
+		private boolean conflate(QueuedSend send) {
+			QueuedSend old = keys.get(send.key);
+			if (old == null) {
+				return false;
+			}
+			int bytes = queuedBytes - old.size + send.size;
+			if ((bytes > sendQueueSize && sendQueue.size() > 1)
+					|| !session.getOutboundBufferStats().tryBuffer(send.size)) {
+				return false;
+			}
+			session.getOutboundBufferStats().onReleased(old.size, 1);
+			session.getOutboundBufferStats().onConflated();
+			queuedBytes = bytes;
+			old.future.complete(SendResult.DROPPED);
+			old.replaceWith(send);
+			return true;
+		}
+
+		/**
+		 * Drop the oldest queued message. Must be called while holding the lock on sendQueue.
+		 * @return false if the queue is empty.
+		 */
+		private boolean dropOldest() {
+			QueuedSend send = removeFirst();
+			if (send == null) {
+				return false;
+			}
+			session.getOutboundBufferStats().onDropped(1);
+			send.future.complete(SendResult.DROPPED);
+			return true;
+		}
+
+		/**
+		 * Must be called while holding the lock on sendQueue.
+		 */
+		private QueuedSend removeFirst() {
+			QueuedSend send = sendQueue.poll();
+			if (send != null) {
+				queuedBytes -= send.size;
+				session.getOutboundBufferStats().onReleased(send.size, 1);
+				if (send.key != null && keys.get(send.key) == send) {
+					keys.remove(send.key);
+				}
+				sendQueue.notifyAll();
+			}
+			return send;
+		}
+
+		/**
+		 * If no other thread is writing, a blocking send writes the queue itself while an
+		 * asynchronous send hands it to the send executor.
+		 */
+		private void startSending(boolean async) {
+			if (sending.compareAndSet(false, true)) {
+				if (async) {
+					try {
+						getSendExecutor().execute(sendTask);
+					} catch (RejectedExecutionException e) {
+						sending.set(false);
+						clearQueue();
+					}
+				} else {
+					flushQueue();
+				}
+			}
+		}
+
+		private QueuedSend poll() {
+			QueuedSend send = pollControl();
+			if (send != null) {
+				return send;
+			}
+			synchronized (sendQueue) {
+				return removeFirst();
+			}
+		}
+
+		private QueuedSend pollControl() {
+			QueuedSend send = controlQueue.poll();
+			if (send != null) {
+				session.getOutboundBufferStats().onReleased(send.size, 1);
+			}
+			return send;
+		}
+
+		private boolean isQueueEmpty() {
+			if (!controlQueue.isEmpty()) {
+				return false;
+			}
+			synchronized (sendQueue) {
+				return sendQueue.isEmpty();
+			}
+		}
+
+		/**
+		 * Complete all the queued sends with CLOSED.
+		 */
+		private void clearQueue() {
+			QueuedSend send;
+			while ((send = poll()) != null) {
+				send.future.complete(SendResult.CLOSED);
+			}
+		}
+
+		private void flushQueue() {
+			do {
+				QueuedSend send;
+				while ((send = poll()) != null) {
+					Outbound out = outbound;
+					if (out == null || !out.isOpen()) {
+						send.future.complete(SendResult.CLOSED);
+						continue;
+					}
+					try {
+						if (send.fragments != null) {
+							for (int i = 0; i < send.fragments.length; i++) {
+								if (i > 0) {
+									flushControl(out);
+								}
+								write(out, send.fragments[i], null);
+							}
+						} else {
+							write(out, send.text, send.bytes);
+						}
+						send.future.complete(SendResult.SENT);
+						if (!send.control) {
+							session.getOutboundBufferStats().onFlushed(1);
+						}
+					} catch (IOException e) {
+						// The connection is still open if the write timed out.
+						boolean timedOut = out.isOpen();
+						Log.debug("Session["+session.getSessionId()+"]: write failed: " + e);
+						out.disconnect();
+						send.future.complete(timedOut ? SendResult.TIMEOUT : SendResult.CLOSED);
+					}
+				}
+				sending.set(false);
+			} while (!isQueueEmpty() && sending.compareAndSet(false, true));
+		}
+
+		/**
+		 * Write the queued control frames between the fragments of a message.
+		 */
+		private void flushControl(Outbound out) throws IOException {
+			QueuedSend send;
+			while ((send = pollControl()) != null) {
 				try {
-					outbound.sendMessage(frame.encode());
+					write(out, send.text, send.bytes);
 				} catch (IOException e) {
-					outbound.disconnect();
-					throw new SocketIOException(e);
+					send.future.complete(SendResult.CLOSED);
+					throw e;
 				}
+				send.future.complete(SendResult.SENT);
+			}
+		}
+
+		private void write(Outbound out, String text, byte[] bytes) throws IOException {
+			byte[] compressed = deflater == null ? null : compress(text, bytes);
+			if (compressed != null) {
+				out.sendMessage(WebSocket.SENTINEL_FRAME, compressed, 0, compressed.length);
+			} else if (bytes != null) {
+				out.sendMessage(WebSocket.SENTINEL_FRAME, bytes, 0, bytes.length);
 			} else {
+				out.sendMessage(text);
+			}
+		}
+
+		/**
+		 * @return The compressed message, or null if it should be sent as is.
+		 */
+		private byte[] compress(String text, byte[] bytes) throws IOException {
+			if (bytes == null) {
+				bytes = text.getBytes("UTF-8");
+			}
+			if (bytes.length < deflateThreshold) {
+				compressionStats.onSkipped(bytes.length);
+				return null;
+			}
+			return deflater.compress(bytes, DEFLATE_PREFIX);
+		}
+
+		/**
+		 * The policy applies to the data messages that don't fit in the send queue.
+		 */
+		@Override
+		public void setOverflowPolicy(OverflowPolicy policy) {
+			overflowPolicy = policy != null ? policy : OverflowPolicy.BLOCK;
+		}
+
+		/**
+		 * Block up to maxIdleTime until a send completes. If it doesn't, the send times out
+		 * and the session is disconnected.
+		 */
+		private void waitFor(SendFuture future) throws SocketIOException {
+			SendResult result = future.await(maxIdleTime);
+			if (result == null && future.complete(SendResult.TIMEOUT)) {
+				Log.debug("Session["+session.getSessionId()+"]: send timed out");
+				Outbound out = outbound;
+				if (out != null) {
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					out.disconnect();
+				}
+			}
+			result = future.getResult();
+			if (result == SendResult.CLOSED) {
 				throw new SocketIOClosedException();
+			} else if (result == SendResult.TIMEOUT) {
+				throw new SocketIOException();
 			}
 		}
 		
-		
 		/*
 		 * (non-Javadoc)
 		 * @see com.glines.socketio.SocketIOInbound.SocketIOOutbound#sendMessage(java.lang.String)
@@ -178,12 +717,36 @@ public class WebSocketTransport extends AbstractTransport {
 		public void sendMessage(int messageType, String message)
 				throws SocketIOException {
 			if (outbound.isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
-				sendMessage(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message));
+				Log.debug("Session["+session.getSessionId()+"]: sendMessage: [" + messageType + "]: " + message);
+				waitFor(enqueueData(messageType, message, false));
 			} else {
 				throw new SocketIOClosedException();
 			}
 		}
 
+		@Override
+		public SendFuture sendMessageAsync(int messageType, String message) {
+			if (outbound.isOpen() && session.getConnectionState() == ConnectionState.CONNECTED) {
+				Log.debug("Session["+session.getSessionId()+"]: sendMessageAsync: [" + messageType + "]: " + message);
+				return enqueueData(messageType, message, true);
+			}
+			return SendFuture.completed(SendResult.CLOSED);
+		}
+
+		/**
+		 * Jetty's WebSocket implementation only speaks the hixie drafts, whose frames browsers
+		 * only accept as text, so binary messages are sent base64 encoded in DATA frames.
+		 */
+		@Override
+		public void sendMessage(ByteBuffer message) throws SocketIOException {
+			sendMessage(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
+		@Override
+		public SendFuture sendMessageAsync(ByteBuffer message) {
+			return sendMessageAsync(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
 		/*
 		 * (non-Javadoc)
 		 * @see com.glines.socketio.SocketIOSession.SessionTransportHandler#handle(javax.servlet.http.HttpServletRequest, javax.servlet.http.HttpServletResponse, com.glines.socketio.SocketIOSession)
@@ -203,6 +766,7 @@ public class WebSocketTransport extends AbstractTransport {
 		public void abort() {
 			outbound.disconnect();
 			outbound = null;
+			clearQueue();
 			session.onShutdown();
 		}
 	}
@@ -214,6 +778,106 @@ public class WebSocketTransport extends AbstractTransport {
 		this.maxIdleTime = maxIdleTime;
 	}
 	
+	/**
+	 * Reads the websocketDeflate (false by default), deflateThreshold (the size in bytes
+	 * under which messages are sent uncompressed, 256 by default), deflateLevel (0-9) and
+	 * deflateContextTakeover (true by default) init parameters. Messages are only compressed
+	 * for clients that asked for it with the deflate request parameter. Context takeover
+	 * compresses better, but keeps a deflater of about 256KB of native memory per connection
+	 * and requires Java 7.
+	 * <p>
+	 * Also reads the fragmentSize init parameter: data messages longer than this many chars
+	 * are sent as FRAGMENT frames to the clients that can reassemble them (64K by default,
+	 * 0 to disable).
+	 * <p>
+	 * Asynchronous sends are written by a pool that starts threads as the writes in progress
+	 * block, up to websocketSendThreads (256 by default), unless an executor was set with
+	 * {@link #setSendExecutor(ExecutorService)}. A connection is written by one thread at a
+	 * time, and a write to a client that doesn't read holds its thread for up to maxIdleTime.
+	 * This is the head-of-line limit of asynchronous sends: while websocketSendThreads
+	 * connections are stalled at the same time, the sends to all the others wait until one of
+	 * the stalled writes completes or times out. The data messages queued for a connection
+	 * are limited to websocketSendQueueSize bytes (256K by default). All queued frames are
+	 * counted in the session's {@link com.glines.socketio.server.OutboundBufferStats} and
+	 * reserved from its memory budget, which may refuse data messages as if the queue
+	 * were full.
+	 */
+	@Override
+	public void init(ServletConfig config) {
+		String str = config.getInitParameter(DEFLATE_KEY);
+		if (str != null) {
+			deflate = Boolean.parseBoolean(str);
+		}
+		str = config.getInitParameter(DEFLATE_THRESHOLD_KEY);
+		if (str != null) {
+			deflateThreshold = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(DEFLATE_LEVEL_KEY);
+		if (str != null) {
+			deflateLevel = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(DEFLATE_CONTEXT_TAKEOVER_KEY);
+		if (str != null) {
+			deflateContextTakeover = Boolean.parseBoolean(str);
+		}
+		str = config.getInitParameter(FRAGMENT_SIZE_KEY);
+		if (str != null) {
+			fragmentSize = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(SEND_THREADS_KEY);
+		if (str != null) {
+			sendThreads = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(SEND_QUEUE_SIZE_KEY);
+		if (str != null) {
+			sendQueueSize = Integer.parseInt(str);
+		}
+		if (deflate && deflateContextTakeover && !MessageDeflater.isContextTakeoverSupported()) {
+			Log.info(getName() + ": deflate context takeover requires Java 7, messages will be compressed independently");
+		}
+	}
+
+	/**
+	 * @return The compression counters of the connections of this transport.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * Use the given executor for asynchronous sends instead of the transport's own pool.
+	 * It is not shut down by {@link #destroy()}.
+	 */
+	public synchronized void setSendExecutor(ExecutorService executor) {
+		if (ownSendExecutor) {
+			sendExecutor.shutdown();
+			ownSendExecutor = false;
+		}
+		sendExecutor = executor;
+	}
+
+	private ExecutorService getSendExecutor() {
+		ExecutorService executor = sendExecutor;
+		if (executor == null) {
+			synchronized (this) {
+				if (sendExecutor == null) {
+					sendExecutor = new WritePool("SocketIO-WebSocketSend",
+							2 * Runtime.getRuntime().availableProcessors(), sendThreads);
+					ownSendExecutor = true;
+				}
+				executor = sendExecutor;
+			}
+		}
+		return executor;
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (ownSendExecutor) {
+			sendExecutor.shutdown();
+		}
+	}
+
 	@Override
 	public String getName() {
 		return TRANSPORT_NAME;
@@ -249,7 +913,9 @@ public class WebSocketTransport extends AbstractTransport {
                 response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
 	        } else {
 	        	SocketIOSession session = sessionFactory.createSession(inbound);
-		        SessionWrapper wrapper = new SessionWrapper(session);
+		        SessionWrapper wrapper = new SessionWrapper(session, request.getParameter(FAST_OPEN_PARAM) != null,
+		        		deflate && request.getParameter(DEFLATE_PARAM) != null,
+		        		request.getParameter(FRAGMENTS_PARAM) != null);
 		        wsFactory.upgrade(request,response,wrapper,origin,protocol);
 	        }
 		} else {
@@ -0,0 +1,106 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads that write to connections on behalf of the asynchronous senders.
+ * <p>
+ * The writes of the servlet container block until a slow client has read enough, for up to
+ * the connection's max idle time. So that a few of these don't hold back the writes to every
+ * other connection, the pool starts a new thread whenever a task is submitted while all its
+ * threads are busy, up to maxThreads. Tasks only wait in the queue once maxThreads writes are
+ * in progress at the same time. Threads above coreThreads stop after a minute without work.
+ */
+class WritePool extends ThreadPoolExecutor {
+	private static final long KEEP_ALIVE = 60;
+	private final AtomicInteger submitted = new AtomicInteger(0);
+
+	/**
+	 * Queues a task only when no thread can be started to run it.
+	 */
+	private static final class TaskQueue extends LinkedBlockingQueue<Runnable> {
+		private static final long serialVersionUID = 1L;
+		private WritePool pool;
+
+		@Override
+		public boolean offer(Runnable task) {
+			if (pool.submitted.get() > pool.getPoolSize()
+					&& pool.getPoolSize() < pool.getMaximumPoolSize()) {
+				return false;
+			}
+			return super.offer(task);
+		}
+
+		boolean force(Runnable task) {
+			return super.offer(task);
+		}
+	}
+
+	WritePool(final String name, int coreThreads, int maxThreads) {
+		super(Math.min(coreThreads, maxThreads), maxThreads, KEEP_ALIVE, TimeUnit.SECONDS, new TaskQueue(),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			},
+			new RejectedExecutionHandler() {
+				@Override
+				public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+					// Another task took the last thread that could be started.
+					if (executor.isShutdown() || !((TaskQueue)executor.getQueue()).force(task)) {
+						throw new RejectedExecutionException();
+					}
+				}
+			});
+		((TaskQueue)getQueue()).pool = this;
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		submitted.incrementAndGet();
+		try {
+			super.execute(task);
+		} catch (RejectedExecutionException e) {
+			submitted.decrementAndGet();
+			throw e;
+		}
+	}
+
+	@Override
+	protected void afterExecute(Runnable task, Throwable t) {
+		submitted.decrementAndGet();
+	}
+}
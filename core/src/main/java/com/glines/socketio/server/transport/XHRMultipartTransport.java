@@ -89,6 +89,11 @@ public class XHRMultipartTransport extends XHRTransport {
 		super(bufferSize, maxIdleTime);
 	}
 
+	@Override
+	protected boolean isStreaming() {
+		return true;
+	}
+
 	@Override
 	public String getName() {
 		return TRANSPORT_NAME;
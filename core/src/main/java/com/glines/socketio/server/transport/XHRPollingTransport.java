@@ -28,6 +28,7 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.glines.socketio.server.PreEncodedFrame;
 import com.glines.socketio.server.SocketIOFrame;
 import com.glines.socketio.server.SocketIOSession;
 
@@ -50,6 +51,12 @@ public class XHRPollingTransport extends XHRTransport {
 			response.flushBuffer();
 		}
 
+		@Override
+		protected void writeEncoded(ServletResponse response, PreEncodedFrame frame) throws IOException {
+			response.getOutputStream().write(frame.getBytes());
+			response.flushBuffer();
+		}
+
 		protected void finishSend(ServletResponse response) throws IOException {};
 
 		protected void customConnect(HttpServletRequest request,
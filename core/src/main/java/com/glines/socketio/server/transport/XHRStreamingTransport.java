@@ -0,0 +1,131 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport;
+
+import java.io.IOException;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOSession;
+import com.glines.socketio.server.transport.ConnectionTimeoutPreventor.IdleCheck;
+
+/**
+ * Streams frames to the client over a chunked text/plain response. The frames are written
+ * as is, the client parses them from the response text as it grows. The client keeps the
+ * whole response text, so the response is ended once it has carried xhrStreamingMaxBytes,
+ * and the client continues the stream with a new request for the same session.
+ */
+public class XHRStreamingTransport extends XHRTransport {
+	public static final String TRANSPORT_NAME = "xhr-streaming";
+	public static final String MAX_STREAM_BYTES_KEY = "xhrStreamingMaxBytes";
+	public static final int MAX_STREAM_BYTES_DEFAULT = 128*1024;
+	private int maxStreamBytes = MAX_STREAM_BYTES_DEFAULT;
+
+	private class XHRStreamingSessionHelper extends XHRSessionHelper {
+		private final IdleCheck idleCheck;
+		private long streamedBytes = 0;
+
+		XHRStreamingSessionHelper(SocketIOSession session, IdleCheck idleCheck) {
+			super(session, true);
+			this.idleCheck = idleCheck;
+		}
+
+		protected void startSend(HttpServletResponse response) throws IOException {
+			response.setContentType("text/plain");
+			response.setCharacterEncoding("UTF-8");
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("Connection", "keep-alive");
+			// Keeps browsers from buffering the start of the response to sniff its type.
+			response.setHeader("X-Content-Type-Options", "nosniff");
+			response.flushBuffer();
+		}
+
+		protected void writeData(ServletResponse response, String data) throws IOException {
+			idleCheck.activity();
+			byte[] bytes = data.getBytes("UTF-8");
+			streamedBytes += bytes.length;
+			response.getOutputStream().write(bytes);
+			response.flushBuffer();
+		}
+
+		protected void finishSend(ServletResponse response) throws IOException {
+		};
+
+		protected void customConnect(HttpServletRequest request,
+				HttpServletResponse response) throws IOException {
+			startSend(response);
+			writeData(response, SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId())
+					+ SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0, "" + HEARTBEAT_DELAY));
+		}
+
+		@Override
+		protected boolean isStreamFull() {
+			return streamedBytes >= maxStreamBytes;
+		}
+
+		/**
+		 * Only called to continue a full stream, nothing was lost.
+		 */
+		@Override
+		protected boolean resume(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			streamedBytes = 0;
+			startSend(response);
+			return true;
+		}
+	}
+
+	public XHRStreamingTransport(int bufferSize, int maxIdleTime) {
+		super(bufferSize, maxIdleTime);
+	}
+
+	/**
+	 * Also reads the xhrStreamingMaxBytes init parameter (128K by default).
+	 */
+	@Override
+	public void init(ServletConfig config) {
+		super.init(config);
+		String str = config.getInitParameter(MAX_STREAM_BYTES_KEY);
+		if (str != null) {
+			maxStreamBytes = Integer.parseInt(str);
+		}
+	}
+
+	@Override
+	protected boolean isStreaming() {
+		return true;
+	}
+
+	@Override
+	public String getName() {
+		return TRANSPORT_NAME;
+	}
+
+	protected XHRSessionHelper createHelper(SocketIOSession session) {
+		IdleCheck idleCheck = ConnectionTimeoutPreventor.newTimeoutPreventor();
+		return new XHRStreamingSessionHelper(session, idleCheck);
+	}
+}
@@ -24,9 +24,20 @@ package com.glines.socketio.server.transport;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
 
+import javax.servlet.ServletConfig;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -41,9 +52,16 @@ import org.eclipse.jetty.util.log.Log;
 import com.glines.socketio.common.ConnectionState;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.CompressionStats;
+import com.glines.socketio.server.OutboundBufferStats;
+import com.glines.socketio.server.OverflowPolicy;
+import com.glines.socketio.server.PreEncodedFrame;
+import com.glines.socketio.server.SendFuture;
+import com.glines.socketio.server.SendResult;
 import com.glines.socketio.server.SocketIOClosedException;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOFrameParser;
 import com.glines.socketio.server.SocketIOSession;
 import com.glines.socketio.server.SocketIOSession.SessionTransportHandler;
 import com.glines.socketio.server.Transport;
@@ -51,20 +69,86 @@ import com.glines.socketio.server.Transport;
 public abstract class XHRTransport extends AbstractHttpTransport {
 	public static final String CONTINUATION_KEY =
 		"com.glines.socketio.server.transport.XHRTransport.Continuation";
+	public static final String TRANSPORT_BUFFER_KEY = "transportBuffer";
+	public static final String TRANSPORT_BUFFER_QUEUE = "queue";
+	public static final String TRANSPORT_BUFFER_RING = "ring";
+	public static final String COALESCE_WINDOW_KEY = "coalesceWindow";
+	public static final String COALESCE_BYTES_KEY = "coalesceBytes";
+	public static final String HTTP_COMPRESSION_KEY = "httpCompression";
+	public static final String HTTP_COMPRESSION_LEVEL_KEY = "httpCompressionLevel";
+	public static final String MAX_PENDING_BYTES_KEY = "maxPendingBytes";
+	public static final int MAX_PENDING_BYTES_DEFAULT = 256*1024;
+	public static final String WRITE_THREADS_KEY = "httpWriteThreads";
+	public static final int WRITE_THREADS_DEFAULT = 256;
+	private static final String COMPRESSING_RESPONSE_KEY =
+		"com.glines.socketio.server.transport.XHRTransport.CompressingResponse";
 	private final int bufferSize;
 	private final int maxIdleTime;
+	private String transportBuffer = TRANSPORT_BUFFER_QUEUE;
+	private long coalesceWindow = 0;
+	private int coalesceBytes;
+	private ScheduledExecutorService flushScheduler = null;
+	private boolean httpCompression = false;
+	private int httpCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private int maxPendingBytes = MAX_PENDING_BYTES_DEFAULT;
+	private int writeThreads = WRITE_THREADS_DEFAULT;
+	private ExecutorService writeExecutor = null;
+	private final CompressionStats compressionStats = new CompressionStats();
 
 	protected abstract class XHRSessionHelper
 			implements SessionTransportHandler, ContinuationListener {
 		protected final SocketIOSession session;
-		private final TransportBuffer buffer = new TransportBuffer(bufferSize);
+		private final TransportBuffer buffer;
 		private volatile boolean is_open = false;
 		private volatile Continuation continuation = null;
 		private final boolean isConnectionPersistant;
 		private boolean disconnectWhenEmpty = false;
+		// The persistent response was ended by isStreamFull() and waits for the next GET.
+		private boolean streamEnded = false;
+		private final LinkedList<PendingSend> pending = new LinkedList<PendingSend>();
+		private int pendingBytes = 0;
+		private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		private boolean flushScheduled = false;
+		// Runs on the flush timer, which only hands the write to a write thread.
+		private final Runnable flushTask = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (XHRSessionHelper.this) {
+					flushScheduled = false;
+					if (continuation != null) {
+						scheduleWrite();
+					}
+				}
+			}
+		};
+		// The suspended request being written by flush(), outside the lock on this helper.
+		private Continuation writing = null;
+		// A request released while it was being written, completed once the write returns.
+		private Continuation completeAfterWrite = null;
+		private boolean writeScheduled = false;
+		// The pre-encoded form of the last buffered frame, written as is if it is sent alone.
+		private PreEncodedFrame lastFrame = null;
+		private final Runnable writeTask = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (XHRSessionHelper.this) {
+					writeScheduled = false;
+				}
+				flush();
+			}
+		};
+		private final SocketIOFrameParser.FrameHandler frameHandler = new SocketIOFrameParser.FrameHandler() {
+			@Override
+			public void onFrame(SocketIOFrame.FrameType frameType, int messageType,
+					CharSequence data, int offset, int length) {
+				session.onMessage(new SocketIOFrame(frameType, messageType,
+						data.subSequence(offset, offset + length).toString()));
+			}
+		};
 
 		XHRSessionHelper(SocketIOSession session, boolean isConnectionPersistant) {
 			this.session = session;
+			this.buffer = createBuffer(bufferSize, session.getOutboundBufferStats());
 			this.isConnectionPersistant = isConnectionPersistant;
 			if (isConnectionPersistant) {
 				session.setHeartbeat(HEARTBEAT_DELAY);
@@ -79,6 +163,44 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		protected abstract void writeData(ServletResponse response, String data) throws IOException;
 
 		protected abstract void finishSend(ServletResponse response) throws IOException;
+
+		/**
+		 * Write a single pre-encoded frame. Transports that can put the cached UTF-8 bytes
+		 * of the frame straight on the wire should override this.
+		 */
+		protected void writeEncoded(ServletResponse response, PreEncodedFrame frame) throws IOException {
+			writeData(response, frame.getEncoded());
+		}
+
+		/**
+		 * @return true if a persistent connection that is closed can be re-established by a
+		 * new GET request. The session is then kept until its timeout expires, and the data
+		 * written to the closed connection must be kept by writeData(), even if the write
+		 * fails, so that {@link #resume} can write it again.
+		 */
+		protected boolean isResumable() {
+			return false;
+		}
+
+		/**
+		 * @return true if the persistent response has carried enough data and must be ended
+		 * after the current write. The client continues the stream with a new GET request for
+		 * the session, which is started by {@link #resume}.
+		 */
+		protected boolean isStreamFull() {
+			return false;
+		}
+
+		/**
+		 * Start the response of a request that re-establishes a persistent connection, and
+		 * write the data the client missed. It is also called to continue a stream ended by
+		 * {@link #isStreamFull()}. The messages buffered while the connection was closed are
+		 * written after it returns.
+		 * @return false, without writing anything, if the connection can't be resumed.
+		 */
+		protected boolean resume(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			return false;
+		}
 		
 		@Override
 		public void disconnect() {
@@ -100,46 +222,368 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			return session.getConnectionState();
 		}
 
+		/**
+		 * A send that didn't fit in the buffer. It is written along with the buffered messages
+		 * by the next request, or times out after maxIdleTime. Its size is counted in the
+		 * session's buffer stats while it waits.
+		 */
+		private final class PendingSend implements Runnable {
+			private final String encoded;
+			private final int size;
+			private final SendFuture future;
+			private SocketIOSession.SessionTask timeoutTask;
+
+			PendingSend(String encoded, int size, SendFuture future) {
+				this.encoded = encoded;
+				this.size = size;
+				this.future = future;
+			}
+
+			@Override
+			public void run() {
+				synchronized (XHRSessionHelper.this) {
+					if (!pending.remove(this)) {
+						return;
+					}
+					pendingBytes -= size;
+					session.getOutboundBufferStats().onReleased(size, 1);
+					future.complete(SendResult.TIMEOUT);
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+				}
+			}
+		}
+
 		@Override
 		public void sendMessage(SocketIOFrame frame)
 				throws SocketIOException {
+			SendFuture future;
 			synchronized (this) {
 				Log.debug("Session["+session.getSessionId()+"]: " +
 						"sendMessage(frame): [" + frame.getFrameType() + "]: " + frame.getData());
-				if (is_open) {
-					if (continuation != null) {
-						List<String> messages = buffer.drainMessages();
-						messages.add(frame.encode());
-						StringBuilder data = new StringBuilder();
-						for (String msg: messages) {
-							data.append(msg);
-						}
-						try {
-							writeData(continuation.getServletResponse(), data.toString());
-						} catch (IOException e) {
-							throw new SocketIOException(e);
-						}
-						if (!isConnectionPersistant && !continuation.isInitial()) {
-							Continuation cont = continuation;
-							continuation = null;
-							cont.complete();
-						} else {
-							session.startHeartbeatTimer();
-						}
-					} else {
-						String data = frame.encode();
-						if (buffer.putMessage(data, maxIdleTime) == false) {
-							session.onDisconnect(DisconnectReason.TIMEOUT);
-							abort();
-							throw new SocketIOException();
-						}
+				if (frame.getFrameType() == SocketIOFrame.FrameType.DATA) {
+					future = send(frame.encode(), null, true, overflowPolicy.getKey(frame.getMessageType(), frame.getData()));
+				} else {
+					future = send(frame.encode(), null, false, null);
+				}
+			}
+			waitFor(future);
+		}
+
+		@Override
+		public void sendEncoded(PreEncodedFrame frame) throws SocketIOException {
+			waitFor(sendEncodedAsync(frame));
+		}
+
+		@Override
+		public SendFuture sendEncodedAsync(PreEncodedFrame frame) {
+			synchronized (this) {
+				Log.debug("Session["+session.getSessionId()+"]: " +
+						"sendEncoded: [" + frame.getFrameType() + "]: " + frame.getEncoded());
+				if (frame.getFrameType() != SocketIOFrame.FrameType.DATA) {
+					return send(frame.getEncoded(), frame, false, null);
+				} else if (session.getConnectionState() != ConnectionState.CONNECTED) {
+					return SendFuture.completed(SendResult.CLOSED);
+				}
+				return send(frame.getEncoded(), frame, true, overflowPolicy.getKey(frame.getMessageType(), frame.getData()));
+			}
+		}
+
+		/**
+		 * Block until a send completes. The lock on this helper must not be held, so that
+		 * the next request can drain the buffer.
+		 */
+		private void waitFor(SendFuture future) throws SocketIOException {
+			SendResult result = future.await(maxIdleTime);
+			if (result == SendResult.SENT || result == SendResult.DROPPED) {
+				return;
+			} else if (result == SendResult.CLOSED) {
+				throw new SocketIOClosedException();
+			}
+			if (result == null) {
+				synchronized (this) {
+					if (future.complete(SendResult.TIMEOUT)) {
+						session.onDisconnect(DisconnectReason.TIMEOUT);
+						abort();
+					}
+				}
+			}
+			throw new SocketIOException();
+		}
+
+		/**
+		 * Buffer an encoded frame, and have it written to the suspended request, if there is
+		 * one, by a write thread. The frame is never written by the calling thread, so a send
+		 * returns as soon as the frame is buffered even when the client reads slowly.
+		 * Never waits for buffer space: a data frame that doesn't fit is handled according to
+		 * the overflow policy, and any other frame is kept in the pending list until the next
+		 * request. The pending list holds at most maxPendingBytes, or a single send; when
+		 * it is full the client isn't keeping up, so the send times out and the session is
+		 * disconnected. Pending sends are reserved from the memory budget like buffered
+		 * messages, and a data frame the budget refuses is handled the same way; control
+		 * frames are always reserved. Must be called while holding the lock on this helper.
+		 * @param encoded The encoded frame.
+		 * @param frame The pre-encoded form of the frame, if available.
+		 * @param isData Whether this is a data frame.
+		 * @param key The conflation key of the data frame, or null.
+		 */
+		private SendFuture send(String encoded, PreEncodedFrame frame, boolean isData, Object key) {
+			if (!is_open) {
+				return SendFuture.completed(SendResult.CLOSED);
+			}
+			SendFuture future = new SendFuture();
+			if (pending.isEmpty() && buffer.putMessage(encoded, key, 0)) {
+				lastFrame = frame;
+				future.complete(SendResult.SENT);
+			} else if (isData && pending.isEmpty() && overflowPolicy.getType() != OverflowPolicy.Type.BLOCK) {
+				lastFrame = null;
+				future.complete(buffer.putMessage(encoded, key, overflowPolicy) ? SendResult.SENT : SendResult.DROPPED);
+			} else {
+				lastFrame = null;
+				int size = TransportBuffer.encodedSize(encoded);
+				if ((!pending.isEmpty() && pendingBytes + size > maxPendingBytes)
+						|| (isData && !session.getOutboundBufferStats().tryBuffer(size))) {
+					Log.debug("Session["+session.getSessionId()+"]: pending sends full");
+					future.complete(SendResult.TIMEOUT);
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+					return future;
+				}
+				if (!isData) {
+					session.getOutboundBufferStats().forceBuffer(size);
+				}
+				PendingSend send = new PendingSend(encoded, size, future);
+				pending.add(send);
+				pendingBytes += size;
+				send.timeoutTask = session.scheduleTask(send, maxIdleTime);
+			}
+			if (continuation != null) {
+				if (isConnectionPersistant && coalesceWindow > 0 && pending.isEmpty()
+						&& buffer.getAvailableBytes() < coalesceBytes) {
+					// Let frames accumulate for up to coalesceWindow so they go out in one write.
+					if (!flushScheduled) {
+						flushScheduled = true;
+						getFlushScheduler().schedule(flushTask, coalesceWindow, TimeUnit.MICROSECONDS);
 					}
 				} else {
-					throw new SocketIOClosedException();
+					scheduleWrite();
+				}
+			}
+			return future;
+		}
+
+		/**
+		 * Have the buffered messages written by a write thread. Must be called while holding
+		 * the lock on this helper.
+		 */
+		private void scheduleWrite() {
+			if (!writeScheduled) {
+				writeScheduled = true;
+				try {
+					getWriteExecutor().execute(writeTask);
+				} catch (RejectedExecutionException e) {
+					// The transport is being destroyed.
+					writeScheduled = false;
+				}
+			}
+		}
+
+		/**
+		 * Write the buffered messages and pending sends to the suspended request with a single
+		 * flush. The lock on this helper is only held to take the messages and to update the
+		 * state of the connection once they are written, so a write that blocks on a slow
+		 * client doesn't block the threads sending to it. Only one write is in progress at a
+		 * time; the messages buffered meanwhile are written by the next one.
+		 */
+		private void flush() {
+			Continuation cont;
+			List<PendingSend> flushed;
+			List<String> messages;
+			PreEncodedFrame frame;
+			synchronized (this) {
+				cont = continuation;
+				// A request that isn't suspended yet is written once it is.
+				if (cont == null || writing != null || !cont.isSuspended() || isQueueEmpty()) {
+					return;
+				}
+				frame = lastFrame;
+				lastFrame = null;
+				flushed = pending.isEmpty() ? null : new ArrayList<PendingSend>(pending);
+				messages = drainMessages();
+				writing = cont;
+			}
+			boolean written = false;
+			Continuation complete;
+			try {
+				written = writeMessages(cont.getServletResponse(), messages, frame);
+			} finally {
+				synchronized (this) {
+					writing = null;
+					complete = completeAfterWrite;
+					completeAfterWrite = null;
+					onWritten(cont, messages.size(), flushed, written);
+					if (continuation != null && !isQueueEmpty()) {
+						scheduleWrite();
+					}
+				}
+			}
+			if (complete != null) {
+				completeContinuation(complete);
+			}
+		}
+
+		/**
+		 * @return false if the write failed.
+		 */
+		private boolean writeMessages(ServletResponse response, List<String> messages, PreEncodedFrame frame) {
+			try {
+				if (messages.size() == 1 && frame != null && frame.getEncoded() == messages.get(0)) {
+					writeEncoded(response, frame);
+				} else if (!messages.isEmpty()) {
+					StringBuilder data = new StringBuilder();
+					for (String msg: messages) {
+						data.append(msg);
+					}
+					writeData(response, data.toString());
+				}
+				return true;
+			} catch (IOException e) {
+				Log.debug("Session["+session.getSessionId()+"]: write failed: " + e);
+				return false;
+			}
+		}
+
+		/**
+		 * Update the state of the connection after a write to the given request, and complete
+		 * the pending sends that were written. Must be called while holding the lock on this
+		 * helper.
+		 */
+		private void onWritten(Continuation cont, int count, List<PendingSend> flushed, boolean written) {
+			boolean current = continuation == cont;
+			if (!written) {
+				if (isConnectionPersistant && isResumable()) {
+					// The data is written again when the client resumes the connection.
+					if (current) {
+						waitForResume();
+					}
+					complete(flushed, SendResult.SENT);
+				} else {
+					complete(flushed, SendResult.CLOSED);
+				}
+				return;
+			}
+			session.getOutboundBufferStats().onFlushed(count);
+			if (current) {
+				if (!isConnectionPersistant && !cont.isInitial()) {
+					continuation = null;
+					completeContinuation(cont);
+				} else if (isConnectionPersistant && isStreamFull()) {
+					streamEnded = true;
+					waitForResume();
+				} else {
+					session.startHeartbeatTimer();
+				}
+			}
+			complete(flushed, SendResult.SENT);
+		}
+
+		/**
+		 * Complete a suspended request that is no longer used, or leave it to flush() if it is
+		 * being written. Must be called while holding the lock on this helper.
+		 */
+		private void releaseContinuation(Continuation cont) {
+			if (writing == cont) {
+				completeAfterWrite = cont;
+			} else {
+				completeContinuation(cont);
+			}
+		}
+
+		/**
+		 * Release the closed connection of a resumable transport. Messages are buffered
+		 * until the client resumes it, or the session times out.
+		 */
+		private void waitForResume() {
+			Continuation cont = continuation;
+			continuation = null;
+			if (cont != null && cont.isSuspended()) {
+				releaseContinuation(cont);
+			}
+			session.clearHeartbeatTimer();
+			session.startTimeoutTimer();
+		}
+
+		/**
+		 * Re-establish the persistent connection of a resumable transport, or continue a
+		 * stream that was ended because it was full.
+		 */
+		private void resumeConnection(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			response.setBufferSize(bufferSize);
+			if (!resume(request, response)) {
+				Log.debug("Session["+session.getSessionId()+"]: connection can't be resumed");
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				is_open = false;
+				session.onDisconnect(DisconnectReason.ERROR);
+				abort();
+				return;
+			}
+			streamEnded = false;
+			session.clearTimeoutTimer();
+			request.setAttribute(SESSION_KEY, session);
+			continuation = ContinuationSupport.getContinuation(request);
+			continuation.addContinuationListener(this);
+			continuation.setTimeout(0);
+			request.setAttribute(CONTINUATION_KEY, continuation);
+			continuation.suspend(response);
+			if (!isQueueEmpty()) {
+				scheduleWrite();
+			} else {
+				session.startHeartbeatTimer();
+			}
+		}
+
+		private boolean isQueueEmpty() {
+			return buffer.isEmpty() && pending.isEmpty();
+		}
+
+		/**
+		 * Remove the buffered messages followed by the pending sends. The futures of the
+		 * pending sends are left for the caller to complete once the messages are written.
+		 */
+		private List<String> drainMessages() {
+			List<String> messages = buffer.drainMessages();
+			for (PendingSend send: pending) {
+				send.timeoutTask.cancel();
+				messages.add(send.encoded);
+			}
+			releasePending();
+			return messages;
+		}
+
+		/**
+		 * Clear the pending list and release its bytes from the buffer stats.
+		 */
+		private void releasePending() {
+			if (!pending.isEmpty()) {
+				session.getOutboundBufferStats().onReleased(pendingBytes, pending.size());
+				pending.clear();
+				pendingBytes = 0;
+			}
+		}
+
+		private void complete(List<PendingSend> sends, SendResult result) {
+			if (sends != null) {
+				for (PendingSend send: sends) {
+					send.future.complete(result);
 				}
 			}
 		}
 
+		@Override
+		public void setOverflowPolicy(OverflowPolicy policy) {
+			overflowPolicy = policy != null ? policy : OverflowPolicy.BLOCK;
+		}
+
 		@Override
 		public void sendMessage(String message) throws SocketIOException {
 			Log.debug("Session["+session.getSessionId()+"]: " +
@@ -150,29 +594,53 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		@Override
 		public void sendMessage(int messageType, String message)
 				throws SocketIOException {
+			waitFor(sendMessageAsync(messageType, message));
+		}
+
+		@Override
+		public SendFuture sendMessageAsync(int messageType, String message) {
 			synchronized (this) {
 				Log.debug("Session["+session.getSessionId()+"]: " +
 						"sendMessage(int, String): [" + messageType + "]: " + message);
 				if (is_open && session.getConnectionState() == ConnectionState.CONNECTED) {
-					sendMessage(new SocketIOFrame(SocketIOFrame.FrameType.DATA, messageType, message));
-				} else {
-					throw new SocketIOClosedException();
+					return send(SocketIOFrame.encode(SocketIOFrame.FrameType.DATA, messageType, message), null, true,
+							overflowPolicy.getKey(messageType, message));
 				}
+				return SendFuture.completed(SendResult.CLOSED);
 			}
 		}
 
+		/**
+		 * HTTP responses are text, so binary messages are sent base64 encoded.
+		 */
+		@Override
+		public void sendMessage(ByteBuffer message) throws SocketIOException {
+			sendMessage(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
+		@Override
+		public SendFuture sendMessageAsync(ByteBuffer message) {
+			return sendMessageAsync(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
 		@Override
 		public void handle(HttpServletRequest request,
 				HttpServletResponse response, SocketIOSession session)
 				throws IOException {
 			if ("GET".equals(request.getMethod())) {
 				synchronized (this) {
-					if (!is_open && buffer.isEmpty()) {
+					if (!is_open && isQueueEmpty()) {
 						response.sendError(HttpServletResponse.SC_NOT_FOUND);
 					} else {
 						/*
 						 */
 						Continuation cont = (Continuation)request.getAttribute(CONTINUATION_KEY);
+						if (continuation != null && cont == null && isConnectionPersistant && isResumable()) {
+							// The client gave up on the current connection before it was seen to fail.
+							Continuation old = continuation;
+							continuation = null;
+							releaseContinuation(old);
+						}
 						if (continuation != null || cont != null) {
 							if (continuation == cont) {
 								continuation = null;
@@ -184,16 +652,24 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 							return;
 						}
 						if (!isConnectionPersistant) {
-							if (!buffer.isEmpty()) {
-								List<String> messages = buffer.drainMessages();
+							if (!isQueueEmpty()) {
+								List<PendingSend> flushed = new ArrayList<PendingSend>(pending);
+								List<String> messages = drainMessages();
 								if (messages.size() > 0) {
 									StringBuilder data = new StringBuilder();
 									for (String msg: messages) {
 										data.append(msg);
 									}
 									startSend(response);
-									writeData(response, data.toString());
-									finishSend(response);
+									try {
+										writeData(response, data.toString());
+										finishSend(response);
+									} catch (IOException e) {
+										complete(flushed, SendResult.CLOSED);
+										throw e;
+									}
+									complete(flushed, SendResult.SENT);
+									session.getOutboundBufferStats().onFlushed(messages.size());
 									if (!disconnectWhenEmpty) {
 										session.startTimeoutTimer();
 									} else {
@@ -211,6 +687,8 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 								request.setAttribute(CONTINUATION_KEY, continuation);
 								startSend(response);
 							}
+						} else if ((isResumable() || streamEnded) && is_open && continuation == null) {
+							resumeConnection(request, response);
 						} else {
 							response.sendError(HttpServletResponse.SC_NOT_FOUND);
 						}
@@ -225,17 +703,14 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 					} else {
 						String data = decodePostData(request.getContentType(), IO.toString(reader));
 						if (data != null && data.length() > 0) {
-							List<SocketIOFrame> list = SocketIOFrame.parse(data);
 							synchronized (session) {
-								for (SocketIOFrame msg: list) {
-									session.onMessage(msg);
-								}
+								SocketIOFrameParser.parse(data, 0, data.length(), frameHandler);
 							}
 						}
                         // Ensure that the disconnectWhenEmpty flag is obeyed in the case where
                         // it is set during a POST.
                         synchronized (this) {
-                            if (disconnectWhenEmpty && buffer.isEmpty()) {
+                            if (disconnectWhenEmpty && isQueueEmpty()) {
                                 if (session.getConnectionState() == ConnectionState.CLOSING) {
                                     session.onDisconnect(DisconnectReason.CLOSED);
                                 }
@@ -269,14 +744,16 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		public void onComplete(Continuation cont) {
 			if (continuation != null && cont == continuation) {
 				continuation = null;
-				if (isConnectionPersistant) {
+				if (isConnectionPersistant && isResumable() && is_open && !disconnectWhenEmpty) {
+					waitForResume();
+				} else if (isConnectionPersistant) {
 					is_open = false;
 					if (!disconnectWhenEmpty) {
 						session.onDisconnect(DisconnectReason.DISCONNECT);
 					}
 					abort();
 				} else {
-					if (!is_open && buffer.isEmpty() && !disconnectWhenEmpty) {
+					if (!is_open && isQueueEmpty() && !disconnectWhenEmpty) {
 						session.onDisconnect(DisconnectReason.DISCONNECT);
 						abort();
 					} else {
@@ -299,7 +776,7 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 					session.onDisconnect(DisconnectReason.TIMEOUT);
 					abort();
 				} else {
-					if (!is_open && buffer.isEmpty()) {
+					if (!is_open && isQueueEmpty()) {
 						session.onDisconnect(DisconnectReason.DISCONNECT);
 						abort();
 					} else {
@@ -331,14 +808,20 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 			is_open = true;
 			session.onConnect(this);
 			finishSend(response);
-            if (continuation != null) {
-                if (isConnectionPersistant) {
-                    request.setAttribute(CONTINUATION_KEY, continuation);
-                    continuation.suspend(response);
-                } else {
-                    continuation = null;
-                }
-            }
+			synchronized (this) {
+				if (continuation != null) {
+					if (isConnectionPersistant) {
+						request.setAttribute(CONTINUATION_KEY, continuation);
+						continuation.suspend(response);
+						// The messages sent by onConnect are written now that it is suspended.
+						if (!isQueueEmpty()) {
+							scheduleWrite();
+						}
+					} else {
+						continuation = null;
+					}
+				}
+			}
 		}
 
 		@Override
@@ -347,7 +830,7 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 		}
 		
 		@Override
-		public void abort() {
+		public synchronized void abort() {
 			session.clearHeartbeatTimer();
 			session.clearTimeoutTimer();
 			is_open = false;
@@ -355,7 +838,7 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 				Continuation cont = continuation;
 				continuation = null;
 				if (cont.isSuspended()) {
-					cont.complete();
+					releaseContinuation(cont);
 				}
 			}
 			buffer.setListener(new TransportBuffer.BufferListener() {
@@ -370,13 +853,198 @@ public abstract class XHRTransport extends AbstractHttpTransport {
 				}
 			});
 			buffer.clear();
+			List<PendingSend> sends = new ArrayList<PendingSend>(pending);
+			for (PendingSend send: sends) {
+				send.timeoutTask.cancel();
+			}
+			releasePending();
+			complete(sends, SendResult.CLOSED);
 			session.onShutdown();
 		}
 	}
 
+	/**
+	 * Complete a suspended request, after writing the end of its compressed body if the
+	 * response is compressed.
+	 */
+	private static void completeContinuation(Continuation cont) {
+		ServletResponse response = cont.getServletResponse();
+		if (response instanceof CompressingResponse) {
+			try {
+				((CompressingResponse)response).finish();
+			} catch (IOException e) {
+				Log.debug("Failed to finish compressed response: " + e);
+				((CompressingResponse)response).end();
+			}
+		}
+		cont.complete();
+	}
+
 	public XHRTransport(int bufferSize, int maxIdleTime) {
 		this.bufferSize = bufferSize;
 		this.maxIdleTime = maxIdleTime;
+		this.coalesceBytes = bufferSize / 2;
+	}
+
+	/**
+	 * Reads the transportBuffer init parameter, and the coalesceWindow (microseconds, 0
+	 * to disable, the default) and coalesceBytes (half of bufferSize by default) init
+	 * parameters. When coalescing is enabled, the frames sent to a streaming connection are
+	 * buffered for up to coalesceWindow, or until coalesceBytes are buffered, and written
+	 * with a single flush by a write thread.
+	 * <p>
+	 * Also reads the httpCompression (false by default) and httpCompressionLevel (0-9) init
+	 * parameters. When compression is enabled, GET responses are compressed with the encoding
+	 * negotiated from the Accept-Encoding header. Streaming transports need Java 7 to flush
+	 * the compressed stream, and are left uncompressed otherwise.
+	 * <p>
+	 * The maxPendingBytes init parameter (256K by default) caps the sends of a session that
+	 * wait for room in a full buffer under the {@link OverflowPolicy#BLOCK} policy.
+	 * <p>
+	 * Frames sent while a request is suspended are buffered, and written by a pool that
+	 * starts threads as the writes in progress block, up to httpWriteThreads (256 by
+	 * default). A session is written by one thread at a time, and a write to a client that
+	 * doesn't read holds its thread for up to maxIdleTime. While httpWriteThreads sessions
+	 * are stalled at the same time, the writes to all the others wait for one of them.
+	 */
+	@Override
+	public void init(ServletConfig config) {
+		String str = config.getInitParameter(TRANSPORT_BUFFER_KEY);
+		if (str != null) {
+			transportBuffer = str;
+		}
+		str = config.getInitParameter(COALESCE_WINDOW_KEY);
+		if (str != null) {
+			coalesceWindow = Long.parseLong(str);
+		}
+		str = config.getInitParameter(COALESCE_BYTES_KEY);
+		if (str != null) {
+			coalesceBytes = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(HTTP_COMPRESSION_KEY);
+		if (str != null) {
+			httpCompression = Boolean.parseBoolean(str);
+		}
+		str = config.getInitParameter(HTTP_COMPRESSION_LEVEL_KEY);
+		if (str != null) {
+			httpCompressionLevel = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(MAX_PENDING_BYTES_KEY);
+		if (str != null) {
+			maxPendingBytes = Integer.parseInt(str);
+		}
+		str = config.getInitParameter(WRITE_THREADS_KEY);
+		if (str != null) {
+			writeThreads = Integer.parseInt(str);
+		}
+		if (httpCompression && isStreaming() && !MessageDeflater.isContextTakeoverSupported()) {
+			Log.info(getName() + ": compressing a streaming response requires Java 7, responses will not be compressed");
+		}
+	}
+
+	/**
+	 * @return true if the frames are streamed over a single long lived response, and each
+	 * flush must reach the client as soon as it is written.
+	 */
+	protected boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * @return The compression counters of the responses of this transport.
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * Wraps GET responses in a {@link CompressingResponse} when compression is enabled and
+	 * accepted by the client. The wrapper is kept as a request attribute so that it is reused
+	 * when a suspended request is redispatched, and the compressed body is finished once the
+	 * request is no longer suspended.
+	 */
+	@Override
+	public void handle(HttpServletRequest request,
+			HttpServletResponse response,
+			Transport.InboundFactory inboundFactory,
+			SocketIOSession.Factory sessionFactory)
+			throws IOException {
+		CompressingResponse compressing = (CompressingResponse)request.getAttribute(COMPRESSING_RESPONSE_KEY);
+		if (compressing == null && httpCompression && "GET".equals(request.getMethod())
+				&& (!isStreaming() || MessageDeflater.isContextTakeoverSupported())) {
+			String encoding = CompressingResponse.negotiate(request.getHeader("Accept-Encoding"));
+			if (encoding != null) {
+				compressing = new CompressingResponse(response, encoding, isStreaming(),
+						httpCompressionLevel, compressionStats);
+				request.setAttribute(COMPRESSING_RESPONSE_KEY, compressing);
+			}
+		}
+		if (compressing == null) {
+			super.handle(request, response, inboundFactory, sessionFactory);
+			return;
+		}
+		boolean done = false;
+		try {
+			super.handle(request, compressing, inboundFactory, sessionFactory);
+			done = true;
+		} finally {
+			if (!done) {
+				request.removeAttribute(COMPRESSING_RESPONSE_KEY);
+				compressing.end();
+			} else if (!ContinuationSupport.getContinuation(request).isSuspended()) {
+				request.removeAttribute(COMPRESSING_RESPONSE_KEY);
+				compressing.finish();
+			}
+		}
+	}
+
+	@Override
+	public void destroy() {
+		synchronized (this) {
+			if (flushScheduler != null) {
+				flushScheduler.shutdownNow();
+			}
+			if (writeExecutor != null) {
+				writeExecutor.shutdown();
+			}
+		}
+	}
+
+	private synchronized ExecutorService getWriteExecutor() {
+		if (writeExecutor == null) {
+			writeExecutor = new WritePool("SocketIO-HttpWrite",
+					2 * Runtime.getRuntime().availableProcessors(), writeThreads);
+		}
+		return writeExecutor;
+	}
+
+	/**
+	 * The timer of the coalesced flushes. Its thread never writes, so that a client that
+	 * reads slowly doesn't delay the flushes of the other sessions.
+	 */
+	private synchronized ScheduledExecutorService getFlushScheduler() {
+		if (flushScheduler == null) {
+			flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SocketIO-FlushTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return flushScheduler;
+	}
+
+	/**
+	 * Create the outbound buffer of a session. The implementation is selected with the
+	 * transportBuffer init parameter: "queue" (the default) or "ring".
+	 */
+	protected TransportBuffer createBuffer(int bufferSize, OutboundBufferStats stats) {
+		if (TRANSPORT_BUFFER_RING.equals(transportBuffer)) {
+			return new RingTransportBuffer(bufferSize, stats);
+		}
+		return new QueueTransportBuffer(bufferSize, stats);
 	}
 
 	/**
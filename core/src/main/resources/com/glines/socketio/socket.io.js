@@ -71,6 +71,32 @@ if (typeof window != 'undefined'){
 			for (var i in additional)
 				if (additional.hasOwnProperty(i))
 					target[i] = additional[i];
+		},
+
+		binarySupported: function(){
+			return typeof ArrayBuffer != 'undefined' && typeof Uint8Array != 'undefined' && 'atob' in window && 'btoa' in window;
+		},
+
+		isBinary: function(obj){
+			return typeof ArrayBuffer != 'undefined' && (obj instanceof ArrayBuffer || (!!ArrayBuffer.isView && ArrayBuffer.isView(obj)));
+		},
+
+		// ArrayBuffer or ArrayBuffer view to base64, for the transports that can only send text.
+		encodeBinary: function(data){
+			var bytes = data instanceof ArrayBuffer ? new Uint8Array(data) : new Uint8Array(data.buffer, data.byteOffset, data.byteLength);
+			var str = '';
+			for (var i = 0; i < bytes.length; i += 8192){
+				str += String.fromCharCode.apply(null, bytes.subarray(i, i + 8192));
+			}
+			return btoa(str);
+		},
+
+		decodeBinary: function(str){
+			var bin = atob(str), bytes = new Uint8Array(bin.length);
+			for (var i = 0; i < bin.length; i++){
+				bytes[i] = bin.charCodeAt(i);
+			}
+			return bytes.buffer;
 		}
 
 	};
@@ -92,6 +118,178 @@ if (typeof window != 'undefined'){
  * @copyright Copyright (c) 2010 LearnBoost <dev@learnboost.com>
  */
 
+// inflate
+
+(function(){
+
+	/*
+	 * Raw inflate (RFC 1951) of the messages compressed by the server. The last 32K of output are
+	 * kept between messages, because the server may refer to earlier messages (context takeover).
+	 * Each message is base64 encoded, and the 00 00 FF FF that ends its sync flush is removed.
+	 */
+	var WINDOW_SIZE = 32768,
+		LENGTH_BASE = [3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258],
+		LENGTH_EXTRA = [0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0],
+		DIST_BASE = [1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073, 4097, 6145, 8193, 12289, 16385, 24577],
+		DIST_EXTRA = [0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13],
+		CODE_LENGTH_ORDER = [16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15],
+		fixedLength, fixedDist;
+
+	var huffman = function(lengths, n){
+		var h = {count: [], symbol: []}, offs = [], i;
+		for (i = 0; i < 16; i++) h.count[i] = 0;
+		for (i = 0; i < n; i++) h.count[lengths[i]]++;
+		offs[1] = 0;
+		for (i = 1; i < 15; i++) offs[i + 1] = offs[i] + h.count[i];
+		for (i = 0; i < n; i++) if (lengths[i]) h.symbol[offs[lengths[i]]++] = i;
+		return h;
+	};
+
+	var fixed = function(){
+		if (!fixedLength){
+			var lengths = [], i;
+			for (i = 0; i < 144; i++) lengths[i] = 8;
+			for (; i < 256; i++) lengths[i] = 9;
+			for (; i < 280; i++) lengths[i] = 7;
+			for (; i < 288; i++) lengths[i] = 8;
+			fixedLength = huffman(lengths, 288);
+			for (i = 0; i < 30; i++) lengths[i] = 5;
+			fixedDist = huffman(lengths, 30);
+		}
+	};
+
+	var Inflater = io.util.Inflater = function(){
+		this.window = [];
+	};
+
+	Inflater.check = function(){
+		return typeof window.atob == 'function';
+	};
+
+	Inflater.prototype.inflate = function(data){
+		var raw = atob(data), input = [], i;
+		for (i = 0; i < raw.length; i++) input.push(raw.charCodeAt(i));
+		input.push(0, 0, 0xFF, 0xFF);
+		this._in = input;
+		this._pos = 0;
+		this._bitbuf = 0;
+		this._bitcnt = 0;
+		var out = this.window, start = out.length, last;
+		do {
+			last = this._bits(1);
+			switch (this._bits(2)){
+				case 0: this._stored(out); break;
+				case 1: fixed(); this._codes(out, fixedLength, fixedDist); break;
+				case 2: this._dynamic(out); break;
+				default: throw 'Invalid deflate block';
+			}
+		} while (!last && this._pos < input.length);
+		var bytes = out.slice(start);
+		this.window = out.length > WINDOW_SIZE ? out.slice(out.length - WINDOW_SIZE) : out;
+		this._in = null;
+		return decodeUtf8(bytes);
+	};
+
+	Inflater.prototype._bits = function(need){
+		var val = this._bitbuf;
+		while (this._bitcnt < need){
+			if (this._pos >= this._in.length) throw 'Truncated deflate data';
+			val |= this._in[this._pos++] << this._bitcnt;
+			this._bitcnt += 8;
+		}
+		this._bitbuf = val >> need;
+		this._bitcnt -= need;
+		return val & ((1 << need) - 1);
+	};
+
+	Inflater.prototype._decode = function(h){
+		var code = 0, first = 0, index = 0, count;
+		for (var len = 1; len < 16; len++){
+			code |= this._bits(1);
+			count = h.count[len];
+			if (code - count < first) return h.symbol[index + (code - first)];
+			index += count;
+			first = (first + count) << 1;
+			code <<= 1;
+		}
+		throw 'Invalid deflate code';
+	};
+
+	Inflater.prototype._stored = function(out){
+		this._bitbuf = 0;
+		this._bitcnt = 0;
+		var input = this._in, pos = this._pos;
+		if (pos + 4 > input.length) throw 'Truncated deflate data';
+		var len = input[pos] | (input[pos + 1] << 8);
+		if ((len ^ 0xFFFF) != (input[pos + 2] | (input[pos + 3] << 8))) throw 'Invalid stored block';
+		pos += 4;
+		if (pos + len > input.length) throw 'Truncated deflate data';
+		for (var end = pos + len; pos < end; pos++) out.push(input[pos]);
+		this._pos = pos;
+	};
+
+	Inflater.prototype._codes = function(out, lencode, distcode){
+		var symbol, len, dist, from;
+		while ((symbol = this._decode(lencode)) != 256){
+			if (symbol < 256){
+				out.push(symbol);
+			} else {
+				symbol -= 257;
+				len = LENGTH_BASE[symbol] + this._bits(LENGTH_EXTRA[symbol]);
+				symbol = this._decode(distcode);
+				dist = DIST_BASE[symbol] + this._bits(DIST_EXTRA[symbol]);
+				if (dist > out.length) throw 'Invalid deflate distance';
+				for (from = out.length - dist; len > 0; len--) out.push(out[from++]);
+			}
+		}
+	};
+
+	Inflater.prototype._dynamic = function(out){
+		var nlen = this._bits(5) + 257, ndist = this._bits(5) + 1, ncode = this._bits(4) + 4,
+			lengths = [], index, symbol, len, repeat;
+		for (index = 0; index < 19; index++) lengths[CODE_LENGTH_ORDER[index]] = index < ncode ? this._bits(3) : 0;
+		var lencode = huffman(lengths, 19);
+		lengths = [];
+		index = 0;
+		while (index < nlen + ndist){
+			symbol = this._decode(lencode);
+			if (symbol < 16){
+				lengths[index++] = symbol;
+			} else {
+				len = 0;
+				if (symbol == 16){
+					if (index == 0) throw 'Invalid deflate lengths';
+					len = lengths[index - 1];
+					repeat = 3 + this._bits(2);
+				} else if (symbol == 17){
+					repeat = 3 + this._bits(3);
+				} else {
+					repeat = 11 + this._bits(7);
+				}
+				if (index + repeat > nlen + ndist) throw 'Invalid deflate lengths';
+				while (repeat--) lengths[index++] = len;
+			}
+		}
+		this._codes(out, huffman(lengths, nlen), huffman(lengths.slice(nlen), ndist));
+	};
+
+	var decodeUtf8 = function(bytes){
+		var str = '';
+		for (var i = 0; i < bytes.length; i += 8192){
+			str += String.fromCharCode.apply(null, bytes.slice(i, i + 8192));
+		}
+		return decodeURIComponent(escape(str));
+	};
+
+})();
+/**
+ * Socket.IO client
+ * 
+ * @author Guillermo Rauch <guillermo@learnboost.com>
+ * @license The MIT license.
+ * @copyright Copyright (c) 2010 LearnBoost <dev@learnboost.com>
+ */
+
 // abstract
 
 (function(){
@@ -111,6 +309,7 @@ if (typeof window != 'undefined'){
 			// Core Message Types
 			TEXT_MESSAGE_TYPE: 0,
 			JSON_MESSAGE_TYPE: 1,
+			BINARY_MESSAGE_TYPE: 2,
 			
 			// Methods
 			encode: function(ftype, mtype, data) {
@@ -149,7 +348,7 @@ if (typeof window != 'undefined'){
 					ftype = parseInt(data.substring(start, start+1), 16);
 
 					if (end-start > 1) {
-						if (ftype == this.DATA_CODE || ftype == this.FRAGEMENT_CODE) {
+						if (ftype == this.DATA_CODE || ftype == this.FRAGMENT_CODE) {
 							mtype = parseInt(data.substring(start+1, end), 16);
 						} else {
 							break;
@@ -176,6 +375,8 @@ if (typeof window != 'undefined'){
 					frames.push({ftype: ftype, mtype: mtype, data: data.substring(start, end)});
 					idx = end;
 				}
+				// How much of data was parsed, so that a caller receiving data in chunks can keep the rest.
+				frames.end = idx;
 				return frames;
 			}
 	};
@@ -191,6 +392,15 @@ if (typeof window != 'undefined'){
 
 	Transport.prototype.send = function(mtype, data){
 		this.message_id++;
+		if (io.util.isBinary(data)) data = io.util.encodeBinary(data);
+		// Messages larger than fragmentSize are sent as FRAGMENT frames followed by a DATA frame.
+		var size = this.options.fragmentSize;
+		while (size > 1 && data.length > size){
+			var end = size, c = data.charCodeAt(end - 1);
+			if (c >= 0xD800 && c <= 0xDBFF) end--; // don't split surrogate pairs
+			this.rawsend(Frame.encode(Frame.FRAGMENT_CODE, mtype, data.substring(0, end)));
+			data = data.substring(end);
+		}
 		this.rawsend(Frame.encode(Frame.DATA_CODE, mtype, data));
 	};
 
@@ -215,6 +425,7 @@ if (typeof window != 'undefined'){
 		this.rawsend(Frame.encode(Frame.CLOSE_CODE, null, this.close_id));
 	};
 	
+	// Returns the number of chars of data that were parsed as complete frames.
 	Transport.prototype._onData = function(data){
 		this._setTimeout();
 		var msgs = Frame.decode(data);
@@ -223,6 +434,7 @@ if (typeof window != 'undefined'){
 				this._onMessage(msgs[i]);
 			}
 		}
+		return msgs.end;
 	};
 	
 	Transport.prototype._setTimeout = function(){
@@ -260,8 +472,24 @@ if (typeof window != 'undefined'){
 			this._onCloseFrame(message.data);
 		} else if (message.ftype == Frame.PING_CODE) {
 			this._onPingFrame(message.data);
+		} else if (message.ftype == Frame.FRAGMENT_CODE) {
+			if (this._fragments && this._fragmentsType != message.mtype) this._fragments = null;
+			if (!this._fragments) {
+				this._fragments = [];
+				this._fragmentsType = message.mtype;
+			}
+			this._fragments.push(message.data);
 		} else if (message.ftype == Frame.DATA_CODE) {
-			this.base._onMessage(message.mtype, message.data);
+			var data = message.data;
+			if (this._fragments) {
+				// The DATA frame ends a fragmented message of the same type.
+				if (this._fragmentsType == message.mtype) {
+					this._fragments.push(data);
+					data = this._fragments.join('');
+				}
+				this._fragments = null;
+			}
+			this.base._onMessage(message.mtype, data);
 		} else {
 			// For now we'll ignore other frame types.
 		}
@@ -300,6 +528,7 @@ if (typeof window != 'undefined'){
 		if (this._timeout) clearTimeout(this._timeout);
 		this.sessionid = null;
 		this.disconnectWhenEmpty = false;
+		this._fragments = null;
 		if (this._timedout) {
 			reason = this.base.DR_TIMEOUT;
 			error = null;
@@ -478,8 +707,9 @@ if (typeof window != 'undefined'){
 	
 	WS.prototype.connect = function(){
 		var self = this;
+		this._inflater = this.options.deflate && io.util.Inflater.check() ? new io.util.Inflater() : null;
 		this.socket = new WebSocket(this._prepareUrl());
-		this.socket.onmessage = function(ev){ self._onData(ev.data); };
+		this.socket.onmessage = function(ev){ self._onData(self._decode(ev.data)); };
 		this.socket.onopen = function(ev){ self._onOpen(); };
 		this.socket.onclose = function(ev){ self._onClose(); };
 		return this;
@@ -525,9 +755,17 @@ if (typeof window != 'undefined'){
 		return this;
 	};
 
+	WS.prototype._decode = function(data){
+		// Compressed messages start with 'z', Socket.IO frames with '~'.
+		if (this._inflater && data.charAt(0) == 'z') return this._inflater.inflate(data.substring(1));
+		return data;
+	};
+
 	WS.prototype._onOpen = function(){
 		// This is needed because the 7.1.6 version of jetty's WebSocket fails if messages are
 		// sent from inside WebSocket.onConnect() method. 
+		// With fastOpen the server sends the session frames without waiting for it, and ignores it;
+		// it is still sent for servers that don't support fastOpen.
 		this.socket.send('OPEN');
 		return this;
 	};
@@ -548,7 +786,16 @@ if (typeof window != 'undefined'){
 		+ ':' + this.base.options.port
 		+ '/' + this.base.options.resource
 		+ '/' + this.type
-		+ (this.sessionid ? ('/' + this.sessionid) : '');
+		+ (this.sessionid ? ('/' + this.sessionid) : '')
+		+ this._prepareQuery();
+	};
+
+	WS.prototype._prepareQuery = function(){
+		var params = [];
+		if (this.options.fastOpen) params.push('fastopen=1');
+		if (this._inflater) params.push('deflate=1');
+		params.push('fragments=1');
+		return params.length ? '?' + params.join('&') : '';
 	};
 	
 	WS.check = function(){
@@ -743,6 +990,140 @@ if (typeof window != 'undefined'){
  * @copyright Copyright (c) 2010 LearnBoost <dev@learnboost.com>
  */
 
+(function(){
+	
+	var empty = new Function(),
+	
+	XHRStreaming = io.Transport['xhr-streaming'] = function(){
+		io.Transport.XHR.apply(this, arguments);
+	};
+	
+	io.util.inherit(XHRStreaming, io.Transport.XHR);
+	
+	XHRStreaming.prototype.type = 'xhr-streaming';
+	
+	XHRStreaming.prototype._get = function(){
+		var self = this, offset = 0;
+		this._xhr = this._request('', 'GET');
+		this._xhr.onreadystatechange = function(){
+			var status, text, xhr = self._xhr;
+			if (xhr.readyState == 3 || xhr.readyState == 4){
+				try { status = xhr.status; } catch(e){}
+				if (status == 200){
+					// The response grows with every flush, an incomplete frame is parsed on the next one.
+					text = xhr.responseText;
+					if (text.length > offset) offset += self._onData(text.substring(offset));
+				}
+				if (xhr.readyState == 4){
+					xhr.onreadystatechange = empty;
+					self._xhr = null;
+					// The server ends the response after xhrStreamingMaxBytes, so that responseText
+					// doesn't grow forever. The stream continues with a new request for the session.
+					if (status == 200 && offset > 0 && self.sessionid && self.base.socketState != self.base.CLOSED){
+						self._get();
+					} else {
+						self._onDisconnect(self.base.DR_ERROR, "XHR stream closed");
+					}
+				}
+			}
+		};
+		this._xhr.send();
+	};
+	
+	XHRStreaming.check = function(){
+		// Only XMLHttpRequest level 2 exposes the partial responseText while the response is loading.
+		return 'XMLHttpRequest' in window && 'withCredentials' in new XMLHttpRequest();
+	};
+
+	XHRStreaming.xdomainCheck = function(){
+		return false;
+	};
+	
+})();
+/**
+ * Socket.IO client
+ * 
+ * @author Guillermo Rauch <guillermo@learnboost.com>
+ * @license The MIT license.
+ * @copyright Copyright (c) 2010 LearnBoost <dev@learnboost.com>
+ */
+
+(function(){
+	
+	var EventSourceTransport = io.Transport.eventsource = function(){
+		io.Transport.XHR.apply(this, arguments);
+	};
+	
+	io.util.inherit(EventSourceTransport, io.Transport.XHR);
+	
+	EventSourceTransport.prototype.type = 'eventsource';
+	
+	EventSourceTransport.prototype.connect = function(){
+		this._lastEventId = null;
+		this._resuming = false;
+		return io.Transport.XHR.prototype.connect.call(this);
+	};
+	
+	EventSourceTransport.prototype._get = function(){
+		var self = this,
+		    onData = function(ev, data){
+			self._lastEventId = ev.lastEventId;
+			self._resuming = false;
+			self._onData(data);
+		};
+		// Resuming with the id of the last event received gets the events that were missed.
+		this._source = new EventSource(this._prepareUrl()
+			+ (this.sessionid && this._lastEventId ? '?lastEventId=' + encodeURIComponent(this._lastEventId) : ''));
+		this._source.onmessage = function(ev){
+			onData(ev, ev.data);
+		};
+		// Events that contain line breaks are sent JSON encoded.
+		this._source.addEventListener('j', function(ev){
+			onData(ev, JSON.parse(ev.data));
+		}, false);
+		this._source.onerror = function(){
+			// The browser would reconnect to the same URL, which is the connect URL of a new
+			// session for the first connection, so the reconnection is done here instead.
+			self._closeSource();
+			if (self.sessionid && self._lastEventId && !self._resuming){
+				self._resuming = true;
+				self._get();
+			} else {
+				self._onDisconnect(self.base.DR_ERROR, "EventSource connection failed");
+			}
+		};
+	};
+	
+	EventSourceTransport.prototype._closeSource = function(){
+		if (this._source){
+			this._source.onmessage = this._source.onerror = null;
+			this._source.close();
+			this._source = null;
+		}
+	};
+	
+	EventSourceTransport.prototype._destroy = function(){
+		this._closeSource();
+		io.Transport.XHR.prototype._destroy.call(this);
+	};
+	
+	EventSourceTransport.check = function(){
+		return 'EventSource' in window && 'JSON' in window && io.Transport.XHR.check();
+	};
+
+	EventSourceTransport.xdomainCheck = function(){
+		return false;
+	};
+	
+})();
+/**
+ * Socket.IO client
+ * 
+ * @author Guillermo Rauch <guillermo@learnboost.com>
+ * @license The MIT license.
+ * @copyright Copyright (c) 2010 LearnBoost <dev@learnboost.com>
+ */
+
 (function(){
 
 	var empty = new Function(),
@@ -969,14 +1350,24 @@ JSONPPolling.xdomainCheck = function(){
 	// Message Types
 	Socket.prototype.TEXT_MESSAGE = 0;
 	Socket.prototype.JSON_MESSAGE = 1;
+	Socket.prototype.BINARY_MESSAGE = 2; // ArrayBuffer, sent base64 encoded by the text only transports
 
 	Socket.prototype.options = {
 			secure: false,
 			document: document,
 			port: document.location.port || 80,
 			resource: 'socket.io',
-			transports: ['websocket', 'flashsocket', 'htmlfile', 'xhr-multipart', 'xhr-polling', 'jsonp-polling'],
+			transports: ['websocket', 'flashsocket', 'eventsource', 'htmlfile', 'xhr-multipart', 'xhr-streaming', 'xhr-polling', 'jsonp-polling'],
 			transportOptions: {
+				'websocket': {
+					fastOpen: true, // ask the server to send the session frames as soon as the socket opens
+					deflate: true, // accept compressed messages, if the server is configured to send them
+					fragmentSize: 2048 // fits the server's default 8K frame buffer, even as 3 byte UTF-8
+				},
+				'flashsocket': {
+					deflate: true,
+					fragmentSize: 2048
+				},
 				'xhr-polling': {
 					timeout: 25000 // based on polling duration default
 				},
@@ -1062,6 +1453,7 @@ JSONPPolling.xdomainCheck = function(){
 		var data;
 		if (arguments.length == 1) {
 			data = arguments[0];
+			if (io.util.isBinary(data)) mtype = this.BINARY_MESSAGE;
 		} else if (arguments.length >= 2) {
 			mtype = Number(arguments[0]);
 			data = arguments[1];
@@ -1150,7 +1542,13 @@ JSONPPolling.xdomainCheck = function(){
 		var obj = data;
 		var error = null;
 		
-		if (parser) {
+		if (mtype == this.BINARY_MESSAGE && typeof data == 'string' && !parser && io.util.binarySupported()) {
+			try {
+				obj = io.util.decodeBinary(data);
+			} catch (e) {
+				error = e;
+			}
+		} else if (parser) {
 			try {
 				obj = parser.decode(data);
 			} catch (e) {
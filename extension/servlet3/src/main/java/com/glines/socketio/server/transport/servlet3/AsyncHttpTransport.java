@@ -0,0 +1,731 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport.servlet3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.util.URIUtil;
+import org.eclipse.jetty.util.log.Log;
+
+import com.glines.socketio.common.ConnectionState;
+import com.glines.socketio.common.DisconnectReason;
+import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.OverflowPolicy;
+import com.glines.socketio.server.PreEncodedFrame;
+import com.glines.socketio.server.SendFuture;
+import com.glines.socketio.server.SendResult;
+import com.glines.socketio.server.SocketIOClosedException;
+import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.SocketIOFrameParser;
+import com.glines.socketio.server.SocketIOInbound;
+import com.glines.socketio.server.SocketIOSession;
+import com.glines.socketio.server.SocketIOSession.SessionTransportHandler;
+import com.glines.socketio.server.Transport;
+import com.glines.socketio.server.transport.AbstractHttpTransport;
+import com.glines.socketio.server.transport.QueueTransportBuffer;
+import com.glines.socketio.server.transport.TransportBuffer;
+import com.glines.socketio.server.transport.XHRTransport;
+
+/**
+ * Base class of the HTTP transports built on Servlet 3.1 asynchronous requests and
+ * non-blocking I/O. This is the counterpart of
+ * {@link com.glines.socketio.server.transport.XHRTransport} for containers other than Jetty 7:
+ * requests are suspended with {@link AsyncContext}, responses are written with a
+ * {@link WriteListener} and POST bodies are read with a {@link ReadListener}, so a slow client
+ * never holds a container thread. Output that the client isn't ready to accept stays in the
+ * session's outbound buffer, where the session's {@link OverflowPolicy} applies.
+ */
+public abstract class AsyncHttpTransport extends AbstractHttpTransport {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int READ_BUFFER_SIZE = 4096;
+	public static final String MAX_PENDING_BYTES_KEY = XHRTransport.MAX_PENDING_BYTES_KEY;
+	public static final int MAX_PENDING_BYTES_DEFAULT = XHRTransport.MAX_PENDING_BYTES_DEFAULT;
+	private final int bufferSize;
+	private final int maxIdleTime;
+	private int maxPendingBytes = MAX_PENDING_BYTES_DEFAULT;
+
+	protected abstract class AsyncSessionHelper
+			implements SessionTransportHandler, AsyncListener, WriteListener {
+		protected final SocketIOSession session;
+		private final TransportBuffer buffer;
+		private final boolean isConnectionPersistant;
+		private volatile boolean is_open = false;
+		private boolean disconnectWhenEmpty = false;
+		private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+		private final LinkedList<PendingSend> pending = new LinkedList<PendingSend>();
+		private int pendingBytes = 0;
+
+		// The suspended GET request, if any. Guarded by this.
+		private AsyncContext asyncContext = null;
+		private ServletOutputStream out = null;
+		private final LinkedList<byte[]> output = new LinkedList<byte[]>();
+		private boolean completeWhenWritten = false;
+		private boolean connecting = false;
+
+		private final SocketIOFrameParser.FrameHandler frameHandler = new SocketIOFrameParser.FrameHandler() {
+			@Override
+			public void onFrame(SocketIOFrame.FrameType frameType, int messageType,
+					CharSequence data, int offset, int length) {
+				session.onMessage(new SocketIOFrame(frameType, messageType,
+						data.subSequence(offset, offset + length).toString()));
+			}
+		};
+
+		/**
+		 * A send that didn't fit in the buffer. It is written along with the buffered messages
+		 * by the next request, or times out after maxIdleTime.
+		 */
+		private final class PendingSend implements Runnable {
+			private final String encoded;
+			private final int size;
+			private final SendFuture future;
+			private SocketIOSession.SessionTask timeoutTask;
+
+			PendingSend(String encoded, int size, SendFuture future) {
+				this.encoded = encoded;
+				this.size = size;
+				this.future = future;
+			}
+
+			@Override
+			public void run() {
+				synchronized (AsyncSessionHelper.this) {
+					if (!pending.remove(this)) {
+						return;
+					}
+					pendingBytes -= size;
+					session.getOutboundBufferStats().onReleased(size, 1);
+					future.complete(SendResult.TIMEOUT);
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+				}
+			}
+		}
+
+		protected AsyncSessionHelper(SocketIOSession session, boolean isConnectionPersistant) {
+			this.session = session;
+			this.buffer = new QueueTransportBuffer(bufferSize, session.getOutboundBufferStats());
+			this.isConnectionPersistant = isConnectionPersistant;
+			if (isConnectionPersistant) {
+				session.setHeartbeat(HEARTBEAT_DELAY);
+				session.setTimeout(HEARTBEAT_TIMEOUT);
+			} else {
+				session.setTimeout((HTTP_REQUEST_TIMEOUT-REQUEST_TIMEOUT)/2);
+			}
+		}
+
+		/**
+		 * Set the headers of a response that will carry messages.
+		 * @return The text to write before the first message.
+		 */
+		protected abstract String startSend(HttpServletResponse response);
+
+		/**
+		 * @return The text that carries a batch of encoded frames.
+		 */
+		protected abstract String formatData(String data);
+
+		/**
+		 * @return The text to write before completing a response.
+		 */
+		protected abstract String finishSend();
+
+		/**
+		 * Called for every GET request of the session, including the connect request.
+		 */
+		protected void onRequest(HttpServletRequest request) {
+		}
+
+		@Override
+		public void disconnect() {
+			synchronized (this) {
+				session.onDisconnect(DisconnectReason.DISCONNECT);
+				abort();
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized (this) {
+				session.startClose();
+			}
+		}
+
+		@Override
+		public ConnectionState getConnectionState() {
+			return session.getConnectionState();
+		}
+
+		@Override
+		public void setOverflowPolicy(OverflowPolicy policy) {
+			overflowPolicy = policy != null ? policy : OverflowPolicy.BLOCK;
+		}
+
+		@Override
+		public void sendMessage(SocketIOFrame frame) throws SocketIOException {
+			SendFuture future;
+			synchronized (this) {
+				Log.debug("Session["+session.getSessionId()+"]: " +
+						"sendMessage(frame): [" + frame.getFrameType() + "]: " + frame.getData());
+				if (frame.getFrameType() == SocketIOFrame.FrameType.DATA) {
+					future = send(frame.encode(), true, overflowPolicy.getKey(frame.getMessageType(), frame.getData()));
+				} else {
+					future = send(frame.encode(), false, null);
+				}
+			}
+			waitFor(future);
+		}
+
+		@Override
+		public void sendMessage(String message) throws SocketIOException {
+			sendMessage(SocketIOFrame.TEXT_MESSAGE_TYPE, message);
+		}
+
+		@Override
+		public void sendMessage(int messageType, String message) throws SocketIOException {
+			waitFor(sendMessageAsync(messageType, message));
+		}
+
+		@Override
+		public void sendEncoded(PreEncodedFrame frame) throws SocketIOException {
+			waitFor(sendEncodedAsync(frame));
+		}
+
+		@Override
+		public SendFuture sendMessageAsync(int messageType, String message) {
+			synchronized (this) {
+				if (is_open && session.getConnectionState() == ConnectionState.CONNECTED) {
+					return send(SocketIOFrame.encode(SocketIOFrame.FrameType.DATA, messageType, message), true,
+							overflowPolicy.getKey(messageType, message));
+				}
+				return SendFuture.completed(SendResult.CLOSED);
+			}
+		}
+
+		@Override
+		public SendFuture sendEncodedAsync(PreEncodedFrame frame) {
+			synchronized (this) {
+				if (frame.getFrameType() != SocketIOFrame.FrameType.DATA) {
+					return send(frame.getEncoded(), false, null);
+				} else if (session.getConnectionState() != ConnectionState.CONNECTED) {
+					return SendFuture.completed(SendResult.CLOSED);
+				}
+				return send(frame.getEncoded(), true, overflowPolicy.getKey(frame.getMessageType(), frame.getData()));
+			}
+		}
+
+		@Override
+		public void sendMessage(ByteBuffer message) throws SocketIOException {
+			sendMessage(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
+		@Override
+		public SendFuture sendMessageAsync(ByteBuffer message) {
+			return sendMessageAsync(SocketIOFrame.BINARY_MESSAGE_TYPE, SocketIOFrame.encodeBinary(message));
+		}
+
+		/**
+		 * Block until a send completes. The lock on this helper must not be held.
+		 */
+		private void waitFor(SendFuture future) throws SocketIOException {
+			SendResult result = future.await(maxIdleTime);
+			if (result == SendResult.SENT || result == SendResult.DROPPED) {
+				return;
+			} else if (result == SendResult.CLOSED) {
+				throw new SocketIOClosedException();
+			}
+			if (result == null) {
+				synchronized (this) {
+					if (future.complete(SendResult.TIMEOUT)) {
+						session.onDisconnect(DisconnectReason.TIMEOUT);
+						abort();
+					}
+				}
+			}
+			throw new SocketIOException();
+		}
+
+		/**
+		 * Write an encoded frame to the suspended request if the client is keeping up,
+		 * otherwise buffer it. A frame that doesn't fit in the buffer and isn't handled by the
+		 * overflow policy waits in the pending list, which holds at most maxPendingBytes, or a
+		 * single send. Pending sends are reserved from the memory budget, except that control
+		 * frames are never refused; when a data frame is refused, or the list is full, the
+		 * send times out and the session is disconnected. Must be called while holding the
+		 * lock on this helper.
+		 * @param key The conflation key of a data frame, or null.
+		 */
+		private SendFuture send(String encoded, boolean isData, Object key) {
+			if (!is_open) {
+				return SendFuture.completed(SendResult.CLOSED);
+			}
+			SendFuture future = new SendFuture();
+			if (isWritable()) {
+				writeMessages(encoded);
+				future.complete(SendResult.SENT);
+			} else if (pending.isEmpty() && buffer.putMessage(encoded, key, 0)) {
+				future.complete(SendResult.SENT);
+			} else if (isData && pending.isEmpty() && overflowPolicy.getType() != OverflowPolicy.Type.BLOCK) {
+				future.complete(buffer.putMessage(encoded, key, overflowPolicy) ? SendResult.SENT : SendResult.DROPPED);
+			} else {
+				int size = TransportBuffer.encodedSize(encoded);
+				if ((!pending.isEmpty() && pendingBytes + size > maxPendingBytes)
+						|| (isData && !session.getOutboundBufferStats().tryBuffer(size))) {
+					Log.debug("Session["+session.getSessionId()+"]: pending sends full");
+					future.complete(SendResult.TIMEOUT);
+					session.onDisconnect(DisconnectReason.TIMEOUT);
+					abort();
+					return future;
+				}
+				if (!isData) {
+					session.getOutboundBufferStats().forceBuffer(size);
+				}
+				PendingSend send = new PendingSend(encoded, size, future);
+				pending.add(send);
+				pendingBytes += size;
+				send.timeoutTask = session.scheduleTask(send, maxIdleTime);
+			}
+			return future;
+		}
+
+		/**
+		 * @return true if there is a suspended request with no output waiting for the client.
+		 */
+		private boolean isWritable() {
+			return asyncContext != null && !completeWhenWritten && output.isEmpty();
+		}
+
+		/**
+		 * Clear the pending list and release its bytes from the buffer stats.
+		 */
+		private void releasePending() {
+			if (!pending.isEmpty()) {
+				session.getOutboundBufferStats().onReleased(pendingBytes, pending.size());
+				pending.clear();
+				pendingBytes = 0;
+			}
+		}
+
+		private boolean isQueueEmpty() {
+			return buffer.isEmpty() && pending.isEmpty();
+		}
+
+		/**
+		 * Write the buffered messages and pending sends, followed by encoded if not null, as one
+		 * batch. A polling request is completed once the batch has been written.
+		 */
+		private void writeMessages(String encoded) {
+			List<String> messages = buffer.drainMessages();
+			for (PendingSend send: pending) {
+				send.timeoutTask.cancel();
+				messages.add(send.encoded);
+				send.future.complete(SendResult.SENT);
+			}
+			releasePending();
+			if (encoded != null) {
+				messages.add(encoded);
+			}
+			if (messages.isEmpty()) {
+				return;
+			}
+			StringBuilder data = new StringBuilder();
+			for (String msg: messages) {
+				data.append(msg);
+			}
+			session.getOutboundBufferStats().onFlushed(messages.size());
+			if (!isConnectionPersistant && !connecting) {
+				output.add(formatData(data.toString()).getBytes(UTF_8));
+				finishRequest();
+			} else {
+				write(formatData(data.toString()));
+				session.startHeartbeatTimer();
+			}
+		}
+
+		private void write(String text) {
+			output.add(text.getBytes(UTF_8));
+			flushOutput();
+		}
+
+		/**
+		 * Write the end of the response and complete it once the client has accepted it.
+		 */
+		private void finishRequest() {
+			output.add(finishSend().getBytes(UTF_8));
+			completeWhenWritten = true;
+			flushOutput();
+		}
+
+		/**
+		 * Write as much output as the client accepts without blocking. The container calls
+		 * {@link #onWritePossible()} when more can be written.
+		 */
+		private void flushOutput() {
+			if (out == null) {
+				// The write listener isn't registered yet.
+				return;
+			}
+			try {
+				while (!output.isEmpty()) {
+					if (!out.isReady()) {
+						return;
+					}
+					out.write(output.removeFirst());
+				}
+				if (!out.isReady()) {
+					return;
+				}
+				if (completeWhenWritten) {
+					completeRequest();
+				} else {
+					out.flush();
+					if (out.isReady() && !isQueueEmpty()) {
+						// The client caught up, send what was buffered meanwhile.
+						writeMessages(null);
+					}
+				}
+			} catch (IOException e) {
+				onRequestError(e);
+			}
+		}
+
+		/**
+		 * Suspend request and start its response. Must be called while holding the lock on
+		 * this helper, from the container thread that is handling request.
+		 */
+		private void suspend(HttpServletRequest request, HttpServletResponse response, long timeout)
+				throws IOException {
+			request.setAttribute(SESSION_KEY, session);
+			AsyncContext ctx = request.startAsync(request, response);
+			ctx.setTimeout(timeout);
+			ctx.addListener(this);
+			asyncContext = ctx;
+			completeWhenWritten = false;
+			output.clear();
+			output.add(startSend(response).getBytes(UTF_8));
+			ServletOutputStream os = response.getOutputStream();
+			os.setWriteListener(this);
+			out = os;
+		}
+
+		/**
+		 * Complete the suspended request. Must be called while holding the lock on this helper.
+		 */
+		private void completeRequest() {
+			AsyncContext ctx = asyncContext;
+			asyncContext = null;
+			out = null;
+			output.clear();
+			completeWhenWritten = false;
+			if (ctx != null) {
+				try {
+					ctx.complete();
+				} catch (IllegalStateException e) {
+					// Already completed by the container.
+				}
+				if (!isConnectionPersistant && is_open) {
+					if (disconnectWhenEmpty) {
+						abort();
+					} else {
+						session.startTimeoutTimer();
+					}
+				}
+			}
+		}
+
+		private void onRequestError(Throwable t) {
+			Log.debug("Session["+session.getSessionId()+"]: request failed: " + t);
+			if (isConnectionPersistant) {
+				asyncContext = null;
+				out = null;
+				output.clear();
+				if (is_open) {
+					session.onDisconnect(DisconnectReason.DISCONNECT);
+					abort();
+				}
+			} else {
+				completeRequest();
+			}
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			synchronized (this) {
+				flushOutput();
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			synchronized (this) {
+				onRequestError(t);
+			}
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) throws IOException {
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) throws IOException {
+			synchronized (this) {
+				if (event.getAsyncContext() == asyncContext) {
+					// Completed by the container, e.g. because the client went away.
+					onRequestError(new IOException("Request completed"));
+				}
+			}
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) throws IOException {
+			synchronized (this) {
+				if (event.getAsyncContext() == asyncContext) {
+					if (isConnectionPersistant) {
+						onRequestError(new IOException("Request timed out"));
+					} else {
+						finishRequest();
+						// The container requires the request to be completed before returning.
+						completeRequest();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void onError(AsyncEvent event) throws IOException {
+			synchronized (this) {
+				if (event.getAsyncContext() == asyncContext) {
+					onRequestError(event.getThrowable());
+				}
+			}
+		}
+
+		@Override
+		public void handle(HttpServletRequest request, HttpServletResponse response,
+				SocketIOSession session) throws IOException {
+			if ("GET".equals(request.getMethod())) {
+				synchronized (this) {
+					if ((!is_open && isQueueEmpty()) || isConnectionPersistant) {
+						response.sendError(HttpServletResponse.SC_NOT_FOUND);
+						return;
+					}
+					if (asyncContext != null) {
+						// A new poll replaces the one that is still waiting.
+						finishRequest();
+						completeRequest();
+					}
+					onRequest(request);
+					session.clearTimeoutTimer();
+					suspend(request, response, REQUEST_TIMEOUT);
+					if (!isQueueEmpty()) {
+						writeMessages(null);
+					}
+				}
+			} else if ("POST".equals(request.getMethod())) {
+				if (is_open) {
+					if (request.getContentLength() == 0) {
+						response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+					} else {
+						readPost(request);
+					}
+				}
+			} else {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			}
+		}
+
+		private void readPost(final HttpServletRequest request) throws IOException {
+			final AsyncContext ctx = request.startAsync();
+			ctx.setTimeout(HTTP_REQUEST_TIMEOUT);
+			final ServletInputStream in = request.getInputStream();
+			final ByteArrayOutputStream body = new ByteArrayOutputStream(Math.max(request.getContentLength(), 0));
+			in.setReadListener(new ReadListener() {
+				private final byte[] buf = new byte[READ_BUFFER_SIZE];
+
+				@Override
+				public void onDataAvailable() throws IOException {
+					int n;
+					while (in.isReady() && (n = in.read(buf)) != -1) {
+						body.write(buf, 0, n);
+					}
+				}
+
+				@Override
+				public void onAllDataRead() throws IOException {
+					try {
+						String charset = request.getCharacterEncoding();
+						String data = decodePostData(request.getContentType(),
+								body.toString(charset == null ? "UTF-8" : charset));
+						if (data != null && data.length() > 0) {
+							synchronized (session) {
+								SocketIOFrameParser.parse(data, 0, data.length(), frameHandler);
+							}
+						}
+						synchronized (AsyncSessionHelper.this) {
+							if (disconnectWhenEmpty && isQueueEmpty()) {
+								if (session.getConnectionState() == ConnectionState.CLOSING) {
+									session.onDisconnect(DisconnectReason.CLOSED);
+								}
+								abort();
+							}
+						}
+					} finally {
+						ctx.complete();
+					}
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					Log.debug("Session["+session.getSessionId()+"]: POST failed: " + t);
+					ctx.complete();
+				}
+			});
+		}
+
+		protected String decodePostData(String contentType, String data) {
+			if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+				if (data.startsWith("data=")) {
+					return URIUtil.decodePath(data.substring(5));
+				} else {
+					return "";
+				}
+			} else {
+				return data;
+			}
+		}
+
+		void connect(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			synchronized (this) {
+				onRequest(request);
+				suspend(request, response, isConnectionPersistant ? 0 : REQUEST_TIMEOUT);
+				connecting = true;
+				write(formatData(SocketIOFrame.encode(SocketIOFrame.FrameType.SESSION_ID, 0, session.getSessionId())));
+				write(formatData(SocketIOFrame.encode(SocketIOFrame.FrameType.HEARTBEAT_INTERVAL, 0,
+						"" + (isConnectionPersistant ? HEARTBEAT_DELAY : REQUEST_TIMEOUT))));
+				is_open = true;
+				try {
+					session.onConnect(this);
+				} finally {
+					connecting = false;
+				}
+				if (!isConnectionPersistant && asyncContext != null) {
+					finishRequest();
+				}
+			}
+		}
+
+		@Override
+		public void disconnectWhenEmpty() {
+			disconnectWhenEmpty = true;
+		}
+
+		@Override
+		public void abort() {
+			synchronized (this) {
+				session.clearHeartbeatTimer();
+				session.clearTimeoutTimer();
+				is_open = false;
+				if (asyncContext != null) {
+					AsyncContext ctx = asyncContext;
+					asyncContext = null;
+					out = null;
+					output.clear();
+					try {
+						ctx.complete();
+					} catch (IllegalStateException e) {
+						// Already completed by the container.
+					}
+				}
+				buffer.setListener(new TransportBuffer.BufferListener() {
+					@Override
+					public boolean onMessages(List<String> messages) {
+						return false;
+					}
+
+					@Override
+					public boolean onMessage(String message) {
+						return false;
+					}
+				});
+				buffer.clear();
+				List<PendingSend> sends = new ArrayList<PendingSend>(pending);
+				releasePending();
+				for (PendingSend send: sends) {
+					send.timeoutTask.cancel();
+					send.future.complete(SendResult.CLOSED);
+				}
+			}
+			session.onShutdown();
+		}
+	}
+
+	public AsyncHttpTransport(int bufferSize, int maxIdleTime) {
+		this.bufferSize = bufferSize;
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/**
+	 * Reads the maxPendingBytes init parameter (256K by default), which caps the sends of a
+	 * session that wait for room in a full buffer under the {@link OverflowPolicy#BLOCK} policy.
+	 */
+	@Override
+	public void init(ServletConfig config) {
+		String str = config.getInitParameter(MAX_PENDING_BYTES_KEY);
+		if (str != null) {
+			maxPendingBytes = Integer.parseInt(str);
+		}
+	}
+
+	protected abstract AsyncSessionHelper createHelper(SocketIOSession session);
+
+	@Override
+	protected SocketIOSession connect(HttpServletRequest request,
+			HttpServletResponse response, Transport.InboundFactory inboundFactory,
+			SocketIOSession.Factory sessionFactory) throws IOException {
+		SocketIOInbound inbound = inboundFactory.getInbound(request);
+		if (inbound != null) {
+			SocketIOSession session = sessionFactory.createSession(inbound);
+			AsyncSessionHelper handler = createHelper(session);
+			handler.connect(request, response);
+			return session;
+		}
+		return null;
+	}
+}
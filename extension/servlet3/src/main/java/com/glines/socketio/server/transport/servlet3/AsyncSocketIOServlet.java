@@ -0,0 +1,50 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport.servlet3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.glines.socketio.server.SocketIOServlet;
+import com.glines.socketio.server.Transport;
+
+/**
+ * {@link SocketIOServlet} that serves the HTTP transports with Servlet 3.1 non-blocking I/O,
+ * so it runs on any Servlet 3.1 container. The WebSocket and Flash socket transports depend
+ * on Jetty 7 and are not provided; clients fall back to the next transport they support.
+ * <p>
+ * The servlet must be declared with {@code <async-supported>true</async-supported>}.
+ */
+public abstract class AsyncSocketIOServlet extends SocketIOServlet {
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected List<Transport> createTransports(int bufferSize, int maxIdleTime) {
+		List<Transport> list = new ArrayList<Transport>();
+		list.add(new AsyncHTMLFileTransport(bufferSize, maxIdleTime));
+		list.add(new AsyncXHRMultipartTransport(bufferSize, maxIdleTime));
+		list.add(new AsyncXHRPollingTransport(bufferSize, maxIdleTime));
+		list.add(new AsyncJSONPPollingTransport(bufferSize, maxIdleTime));
+		return list;
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * The MIT License
+ * Copyright (c) 2010 Tad Glines
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.glines.socketio.server.transport.servlet3;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.glines.socketio.server.SocketIOSession;
+import com.glines.socketio.server.transport.XHRPollingTransport;
+
+public class AsyncXHRPollingTransport extends AsyncHttpTransport {
+	public static final String TRANSPORT_NAME = XHRPollingTransport.TRANSPORT_NAME;
+
+	private class XHRPollingSessionHelper extends AsyncSessionHelper {
+		XHRPollingSessionHelper(SocketIOSession session) {
+			super(session, false);
+		}
+
+		@Override
+		protected String startSend(HttpServletResponse response) {
+			response.setContentType("text/plain; charset=UTF-8");
+			return "";
+		}
+
+		@Override
+		protected String formatData(String data) {
+			return data;
+		}
+
+		@Override
+		protected String finishSend() {
+			return "";
+		}
+	}
+
+	public AsyncXHRPollingTransport(int bufferSize, int maxIdleTime) {
+		super(bufferSize, maxIdleTime);
+	}
+
+	@Override
+	public String getName() {
+		return TRANSPORT_NAME;
+	}
+
+	@Override
+	protected AsyncSessionHelper createHelper(SocketIOSession session) {
+		return new XHRPollingSessionHelper(session);
+	}
+}
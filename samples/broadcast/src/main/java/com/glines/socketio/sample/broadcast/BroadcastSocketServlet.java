@@ -22,9 +22,7 @@
  */
 package com.glines.socketio.sample.broadcast;
 
-import java.io.IOException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -32,46 +30,48 @@ import com.glines.socketio.server.SocketIOOutbound;
 import org.eclipse.jetty.util.log.Log;
 
 import com.glines.socketio.common.DisconnectReason;
+import com.glines.socketio.server.BroadcastGroup;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOServlet;
 
 public class BroadcastSocketServlet extends SocketIOServlet {
 	private static final long serialVersionUID = 1L;
-	private Queue<BroadcastConnection> connections = new ConcurrentLinkedQueue<BroadcastConnection>();
+	private final BroadcastGroup connections = new BroadcastGroup("broadcast");
 
 	private class BroadcastConnection implements SocketIOInbound {
 		private volatile SocketIOOutbound outbound = null;
+		private volatile BroadcastGroup.Membership membership = null;
 
 		@Override
 		public void onConnect(SocketIOOutbound outbound) {
 			this.outbound = outbound;
-            connections.offer(this);
+			this.membership = connections.join(outbound);
 		}
 
 		@Override
 		public void onDisconnect(DisconnectReason reason, String errorMessage) {
-				this.outbound = null;
-				connections.remove(this);
+			this.outbound = null;
+			// Also called without onConnect, when the connection couldn't be established.
+			if (membership != null) {
+				membership.leave();
 			}
+		}
 
 		@Override
 		public void onMessage(int messageType, String message) {
 			broadcast(messageType, message);
 		}
 
+		@Override
+		public void onMessage(ByteBuffer message) {
+			// Binary messages are not broadcast.
+		}
+
 		private void broadcast(int messageType, String message) {
 			Log.debug("Broadcasting: " + message);
-				for(BroadcastConnection c: connections) {
-					if (c != this) {
-						try {
-							c.outbound.sendMessage(messageType, message);
-						} catch (IOException e) {
-							c.outbound.disconnect();
-						}
-					}
-				}
-			}
+			connections.broadcast(messageType, message, membership.getOutbound());
 		}
+	}
 
 	@Override
 	protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
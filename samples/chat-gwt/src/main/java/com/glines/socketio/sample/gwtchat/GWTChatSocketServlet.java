@@ -23,9 +23,8 @@
 package com.glines.socketio.sample.gwtchat;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -37,22 +36,24 @@ import org.eclipse.jetty.util.log.Log;
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
 import com.glines.socketio.server.SocketIOFrame;
+import com.glines.socketio.server.BroadcastGroup;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOServlet;
 
 public class GWTChatSocketServlet extends SocketIOServlet {
 	private static final long serialVersionUID = 1L;
 	private AtomicInteger ids = new AtomicInteger(1);
-	private Queue<GWTChatConnection> connections = new ConcurrentLinkedQueue<GWTChatConnection>();
+	private final BroadcastGroup connections = new BroadcastGroup("chat");
 
 	private class GWTChatConnection implements SocketIOInbound {
 		private volatile SocketIOOutbound outbound = null;
+		private volatile BroadcastGroup.Membership membership = null;
 		private Integer sessionId = ids.getAndIncrement();
 
 		@Override
 		public void onConnect(SocketIOOutbound outbound) {
 			this.outbound = outbound;
-            connections.offer(this);
+			this.membership = connections.join(outbound);
 			try {
 				outbound.sendMessage(SocketIOFrame.JSON_MESSAGE_TYPE, JSON.toString(
 						Collections.singletonMap("welcome", "Welcome to GWT Chat!")));
@@ -65,10 +66,13 @@ public class GWTChatSocketServlet extends SocketIOServlet {
 
 		@Override
 		public void onDisconnect(DisconnectReason reason, String errorMessage) {
-				this.outbound = null;
-				connections.remove(this);
-			broadcast(SocketIOFrame.JSON_MESSAGE_TYPE, JSON.toString(
-					Collections.singletonMap("announcement", sessionId + " disconnected")));
+			this.outbound = null;
+			// Also called without onConnect, when the connection couldn't be established.
+			if (membership != null) {
+				membership.leave();
+				broadcast(SocketIOFrame.JSON_MESSAGE_TYPE, JSON.toString(
+						Collections.singletonMap("announcement", sessionId + " disconnected")));
+			}
 		}
 
 		@Override
@@ -102,19 +106,16 @@ public class GWTChatSocketServlet extends SocketIOServlet {
 			}
 		}
 
+		@Override
+		public void onMessage(ByteBuffer message) {
+			// The chat protocol has no binary messages.
+		}
+
 		private void broadcast(int messageType, String message) {
 			Log.debug("Broadcasting: " + message);
-				for(GWTChatConnection c: connections) {
-					if (c != this) {
-						try {
-							c.outbound.sendMessage(messageType, message);
-						} catch (IOException e) {
-							c.outbound.disconnect();
-						}
-					}
-				}
-			}
+			connections.broadcast(messageType, message, membership.getOutbound());
 		}
+	}
 
 	@Override
 	protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
@@ -23,6 +23,7 @@
 package com.glines.socketio.sample.echo;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -55,6 +56,15 @@ public class EchoSocketServlet extends SocketIOServlet {
 				outbound.disconnect();
 			}
 		}
+
+		@Override
+		public void onMessage(ByteBuffer message) {
+			try {
+				outbound.sendMessage(message);
+			} catch (IOException e) {
+				outbound.disconnect();
+			}
+		}
 	}
 
 	@Override
@@ -24,9 +24,11 @@ package com.glines.socketio.sample.eventbus;
 
 import com.glines.socketio.common.DisconnectReason;
 import com.glines.socketio.common.SocketIOException;
+import com.glines.socketio.server.SocketIOFrame;
 import com.glines.socketio.server.SocketIOInbound;
 import com.glines.socketio.server.SocketIOOutbound;
 import com.glines.socketio.server.SocketIOServlet;
+import com.glines.socketio.server.TopicRouter;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -35,6 +37,7 @@ import org.eclipse.jetty.util.log.Log;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
@@ -55,7 +58,10 @@ public class EventBusServlet extends SocketIOServlet {
 
     private static final Logger LOGGER = Logger.getLogger(EventBusServlet.class.getName());
 
-    private final ConcurrentMap<String, Endpoints> subscriptions = new ConcurrentHashMap<String, Endpoints>();
+    private final TopicRouter router = new TopicRouter("eventbus");
+    // The latest endpoint of each HTTP session. Endpoints are compared by identity, so that
+    // the disconnect of a replaced endpoint doesn't remove the one that replaced it.
+    private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
 
     @Override
     protected SocketIOInbound doSocketIOConnect(HttpServletRequest request) {
@@ -85,19 +91,6 @@ public class EventBusServlet extends SocketIOServlet {
             return "Endpoint " + id + " (" + remoteHost + ":" + remotePort + ")";
         }
 
-        @Override
-        public int hashCode() {
-            return 31 * id.hashCode();
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            Endpoint endpoint = (Endpoint) o;
-            return id.equals(endpoint.id);
-        }
-
         @Override
         public void onConnect(SocketIOOutbound outbound) {
             if (LOGGER.isLoggable(Level.FINE))
@@ -114,9 +107,11 @@ public class EventBusServlet extends SocketIOServlet {
         public void onDisconnect(DisconnectReason reason, String errorMessage) {
             if (LOGGER.isLoggable(Level.FINE))
                 LOGGER.log(Level.FINE, this + " disconnected: reason=" + reason);
+            SocketIOOutbound outbound = this.outbound;
             this.outbound = null;
-            for (Endpoints ee : subscriptions.values())
-                ee.remove(this);
+            if (outbound != null)
+                router.unsubscribeAll(outbound);
+            endpoints.remove(id, this);
         }
 
         @Override
@@ -135,17 +130,19 @@ public class EventBusServlet extends SocketIOServlet {
                             String topic = json.getString("topic");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " subscribes to topic: " + topic);
-                            subscriptions.putIfAbsent(topic, new Endpoints(topic));
-                            subscriptions.get(topic).add(this);
+                            try {
+                                router.subscribe(outbound, topic);
+                                replacePrevious(topic);
+                            } catch (IllegalArgumentException e) {
+                                LOGGER.log(Level.WARNING, this + " invalid topic: " + topic, e);
+                            }
                             break;
                         }
                         case UNSUBSCRIBE: {
                             String topic = json.getString("topic");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " unsubscribes from topic: " + topic);
-                            Endpoints ee = subscriptions.get(topic);
-                            if (ee != null)
-                                ee.remove(this);
+                            router.unsubscribe(outbound, topic);
                             return;
                         }
                         case PUBLISH: {
@@ -153,9 +150,8 @@ public class EventBusServlet extends SocketIOServlet {
                             String data = json.getString("data");
                             if (LOGGER.isLoggable(Level.FINE))
                                 LOGGER.log(Level.FINE, this + " publishes to topic " + topic + " message: " + data);
-                            Endpoints ee = subscriptions.get(topic);
-                            if (ee != null)
-                                ee.fire(topic, data);
+                            String event = new JSONObject().put("type", MessageType.PUBLISH).put("topic", topic).put("data", data).toString();
+                            router.publish(topic, SocketIOFrame.TEXT_MESSAGE_TYPE, event);
                             break;
                         }
                         default: {
@@ -169,6 +165,30 @@ public class EventBusServlet extends SocketIOServlet {
             }
         }
 
+        @Override
+        public void onMessage(ByteBuffer message) {
+            // The event bus protocol has no binary messages.
+        }
+
+        /**
+         * A new socket from the same HTTP session replaces the previous one: when it subscribes
+         * to a topic the previous one is subscribed to, the previous one is closed.
+         */
+        private void replacePrevious(String topic) {
+            Endpoint old = endpoints.putIfAbsent(id, this);
+            if (old == null || old == this)
+                return;
+            SocketIOOutbound oldOutbound = old.outbound;
+            if (oldOutbound != null && !router.getSubscriptions(oldOutbound).contains(topic))
+                return;
+            if (endpoints.replace(id, old, this) && oldOutbound != null) {
+                if (LOGGER.isLoggable(Level.FINE))
+                    LOGGER.log(Level.FINE, this + " replaces " + old);
+                router.unsubscribeAll(oldOutbound);
+                old.close();
+            }
+        }
+
         void close() {
             if (LOGGER.isLoggable(Level.FINE))
                 LOGGER.log(Level.FINE, this + " closing.");
@@ -193,55 +213,6 @@ public class EventBusServlet extends SocketIOServlet {
         }
     }
 
-    private final class Endpoints {
-
-        final String topic;
-        final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
-
-        Endpoints(String topic) {
-            this.topic = topic;
-        }
-
-        @Override
-        public String toString() {
-            return "Endpoints for " + topic + ": " + endpoints.size();
-        }
-
-        void add(Endpoint endpoint) {
-            if (LOGGER.isLoggable(Level.FINE))
-                LOGGER.log(Level.FINE, "Subscribing " + endpoint + " to " + this);
-            Endpoint old = endpoints.get(endpoint.getId());
-            if (old == null) {
-                endpoints.putIfAbsent(endpoint.getId(), endpoint);
-            } else {
-                endpoints.replace(endpoint.getId(), old, endpoint);
-            }
-            if (old != null)
-                old.close();
-        }
-
-        void remove(Endpoint endpoint) {
-            if (endpoints.remove(endpoint.getId(), endpoint)) {
-                if (LOGGER.isLoggable(Level.FINE))
-                    LOGGER.log(Level.FINE, endpoint + " unsubscribed from " + this);
-                if (endpoints.isEmpty()) {
-                    subscriptions.remove(topic, this);
-                    if (LOGGER.isLoggable(Level.FINE))
-                        LOGGER.log(Level.FINE, this + " removed from subscriptions.");
-                }
-            }
-        }
-
-        void fire(String topic, String data) {
-            for (Endpoint endpoint : endpoints.values())
-                try {
-                    endpoint.send(new JSONObject().put("type", MessageType.PUBLISH).put("topic", topic).put("data", data));
-                } catch (JSONException e) {
-                    throw new RuntimeException(e.getMessage(), e);
-                }
-        }
-    }
-
     private static enum MessageType {
 
         ACK(4),